@@ -0,0 +1,160 @@
+package demo.vkmm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Lays out transient resources in a single allocation so that resources whose lifetimes do not overlap share memory.
+ * The planner only sees sizes, alignments, MemoryTypes and use intervals, so it can be run against synthetic graphs.
+ * <p>
+ * Resources are placed largest first, each at the lowest offset that does not overlap any placed resource whose
+ * lifetime it overlaps. Neighbours that are alive at the same time and whose MemoryTypes conflict are kept on separate
+ * bufferImageGranularity pages. Resources that alias must be treated as undefined at the start of their first use.
+ */
+public final class AliasingPlanner {
+    public static final class Resource {
+        public final MemoryType memType;
+        public final long size;
+        public final long alignment;
+        public final int firstUse;
+        public final int lastUse;
+
+        /**
+         * @param firstUse the first pass that uses the resource.
+         * @param lastUse  the last pass that uses the resource, inclusive.
+         */
+        public Resource(final MemoryType memType, final long size, final long alignment, final int firstUse, final int lastUse) {
+            if (lastUse < firstUse) {
+                throw new IllegalArgumentException("Resource is used last in pass " + lastUse + " before its first use in pass " + firstUse + "!");
+            }
+
+            this.memType = memType;
+            this.size = size;
+            this.alignment = alignment;
+            this.firstUse = firstUse;
+            this.lastUse = lastUse;
+        }
+
+        private boolean isAliveWith(final Resource other) {
+            return this.firstUse <= other.lastUse && other.firstUse <= this.lastUse;
+        }
+    }
+
+    public static final class Layout {
+        /**
+         * Offset of each resource, in the order the resources were given.
+         */
+        public final long[] offsets;
+        /**
+         * Bytes the allocation needs to hold every resource.
+         */
+        public final long size;
+        /**
+         * Alignment the allocation needs for every offset to be valid.
+         */
+        public final long alignment;
+
+        private Layout(final long[] offsets, final long size, final long alignment) {
+            this.offsets = offsets;
+            this.size = size;
+            this.alignment = alignment;
+        }
+    }
+
+    private AliasingPlanner() {}
+
+    public static Layout plan(final List<Resource> resources, final long bufferImageGranularity) {
+        final int count = resources.size();
+        final var offsets = new long[count];
+        long size = 0L;
+        long alignment = 1L;
+
+        final var order = IntStream.range(0, count)
+                .boxed()
+                .sorted(Comparator.<Integer> comparingLong(i -> resources.get(i).size)
+                        .thenComparingInt(i -> resources.get(i).lastUse - resources.get(i).firstUse)
+                        .reversed())
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        // placed resources, ordered by offset.
+        final var placed = new ArrayList<Integer>(count);
+
+        for (int resource : order) {
+            final var current = resources.get(resource);
+            final long offset = place(resources, offsets, placed, current, bufferImageGranularity);
+
+            offsets[resource] = offset;
+            size = Math.max(size, offset + current.size);
+            alignment = Math.max(alignment, current.alignment);
+
+            int index = 0;
+
+            while (index < placed.size() && offsets[placed.get(index)] <= offset) {
+                index++;
+            }
+
+            placed.add(index, resource);
+        }
+
+        // conflicting resources keep to their own pages only relative to an allocation aligned to the granularity.
+        final var memTypes = resources.stream()
+                .map(resource -> resource.memType)
+                .collect(Collectors.toCollection(() -> EnumSet.noneOf(MemoryType.class)));
+
+        if (memTypes.stream().anyMatch(memType -> memTypes.stream().anyMatch(memType::conflicts))) {
+            alignment = Math.max(alignment, bufferImageGranularity);
+        }
+
+        return new Layout(offsets, size, alignment);
+    }
+
+    /**
+     * Finds the lowest offset for a resource among the placed resources it is alive with.
+     */
+    private static long place(
+            final List<Resource> resources, final long[] offsets, final List<Integer> placed,
+            final Resource current, final long granularity) {
+
+        final var neighbours = placed.stream()
+                .filter(i -> resources.get(i).isAliveWith(current))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        // limits[i] is the highest offset the resource may end at to stay clear of neighbours[i] and every neighbour above it.
+        final var limits = new long[neighbours.length];
+
+        for (int i = neighbours.length - 1; i >= 0; i--) {
+            final var neighbour = resources.get(neighbours[i]);
+            long limit = offsets[neighbours[i]];
+
+            if (neighbour.memType.conflicts(current.memType)) {
+                limit = limit / granularity * granularity;
+            }
+
+            limits[i] = i + 1 < neighbours.length ? Math.min(limit, limits[i + 1]) : limit;
+        }
+
+        // the lowest offset above every neighbour that precedes the gap being tried.
+        long cursor = 0L;
+
+        for (int i = 0; i < neighbours.length; i++) {
+            final long offset = MemoryAllocator.alignUp(cursor, current.alignment);
+
+            if (offset + current.size <= limits[i]) {
+                return offset;
+            }
+
+            final var neighbour = resources.get(neighbours[i]);
+            final long end = offsets[neighbours[i]] + neighbour.size;
+
+            cursor = Math.max(cursor, neighbour.memType.conflicts(current.memType) ? MemoryAllocator.alignUp(end, granularity) : end);
+        }
+
+        return MemoryAllocator.alignUp(cursor, current.alignment);
+    }
+}
@@ -0,0 +1,20 @@
+package demo.vkmm;
+
+/**
+ * Placement hint passed with an allocation request. Allocators that have only one possible placement ignore it.
+ */
+public enum AllocationStrategy {
+    /**
+     * Best-fit: choose the smallest free region that fits, keeping large regions intact.
+     */
+    MIN_MEMORY,
+    /**
+     * First-fit: take the first suitable region found, with the least searching.
+     */
+    MIN_TIME,
+    /**
+     * Lowest-offset: choose the suitable region closest to the start of the heap, and prefer older heaps, keeping
+     * allocations compact so that the tail of each heap and the newest heaps can be trimmed.
+     */
+    MIN_OFFSET
+}
@@ -8,59 +8,152 @@ import org.lwjgl.vulkan.VkMemoryAllocateInfo;
 import org.lwjgl.vulkan.VkMemoryRequirements;
 
 import java.lang.ref.WeakReference;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Objects;
 
+/**
+ * Buddy allocator over a single VkDeviceMemory. Thread-safe: allocation, free and mapping synchronize on the allocator.
+ */
 public final class BuddyBlockMemoryAllocator implements MemoryAllocator {
+    private static final int NO_BLOCK = -1;
+    private static final byte NO_ORDER = -1;
+
     private final WeakReference<VkDevice> device;
     private final long size;
     private final long handle;
     private final long minSize;
     private final int typeIndex;
-    private BuddyBlockMemoryBlock root;
-    private ByteBuffer address;
+    private final int maxOrder;
+    private final int[] freeLists;
+    // bit n is set when freeLists[n] is not empty.
+    private int freeOrders;
+    // per-unit block metadata, indexed by (offset / minSize). Only the first unit of a block is meaningful.
+    private final byte[] orders;
+    private final byte[] types;
+    private final int[] nextFree;
+    private final int[] prevFree;
+    private long usedSize;
+    private int allocationCount;
+    private UsageListener usageListener;
+    private long address;
     private int mapCount;
+    private boolean persistentlyMapped;
+
+    public BuddyBlockMemoryAllocator(final VkDevice device, final int typeIndex, final long minSize, final long totalSize)
+            throws MemoryAllocationException {
+        this(device, typeIndex, minSize, totalSize, allocateMemory(device, typeIndex, totalSize));
+    }
 
-    public BuddyBlockMemoryAllocator(final VkDevice device, final int typeIndex, final long minSize, final long totalSize) {
+    /**
+     * Suballocates a VkDeviceMemory that was already allocated. Package-private so the allocator can be exercised
+     * without a VkDevice.
+     */
+    BuddyBlockMemoryAllocator(final VkDevice device, final int typeIndex, final long minSize, final long totalSize, final long handle) {
         this.device = new WeakReference<>(device);
         this.size = totalSize;
         this.minSize = minSize;
         this.typeIndex = typeIndex;
+        this.handle = handle;
+
+        assert Long.bitCount(minSize) == 1 : "Minimum subdivision size must be a power of 2!";
+
+        final long units = this.size / this.minSize;
+
+        this.maxOrder = Long.SIZE - 1 - Long.numberOfLeadingZeros(units);
+        this.freeLists = new int[this.maxOrder + 1];
+        this.orders = new byte[(int) units];
+        this.types = new byte[(int) units];
+        this.nextFree = new int[(int) units];
+        this.prevFree = new int[(int) units];
+
+        Arrays.fill(this.freeLists, NO_BLOCK);
+        Arrays.fill(this.orders, NO_ORDER);
 
+        // seed the free lists with the largest naturally aligned blocks that fit; only differs from a single root when totalSize is not a power of 2.
+        int unit = 0;
+        while (unit < units) {
+            int order = Math.min(this.maxOrder, Long.SIZE - 1 - Long.numberOfLeadingZeros(units - unit));
+
+            if (0 != unit) {
+                order = Math.min(order, Integer.numberOfTrailingZeros(unit));
+            }
+
+            this.orders[unit] = (byte) order;
+            this.types[unit] = (byte) MemoryType.FREE.ordinal();
+            this.link(unit);
+            unit += 1 << order;
+        }
+    }
+
+    private static long allocateMemory(final VkDevice device, final int typeIndex, final long size) throws MemoryAllocationException {
         try (var mem = MemoryStack.stackPush()) {
             final var pMemoryAI = VkMemoryAllocateInfo.callocStack(mem)
                     .sType(VK10.VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
-                    .memoryTypeIndex(this.typeIndex)
-                    .allocationSize(this.size);
+                    .memoryTypeIndex(typeIndex)
+                    .allocationSize(size);
 
             final var pHandle = mem.callocLong(1);
             final int err = VK10.vkAllocateMemory(device, pMemoryAI, null, pHandle);
 
-            assert VK10.VK_SUCCESS == err;
+            if (VK10.VK_SUCCESS != err) {
+                throw new MemoryAllocationException(err);
+            }
 
-            this.handle = pHandle.get();
+            return pHandle.get();
         }
-
-        this.root = new BuddyBlockMemoryBlock(0L, this.size);
     }
 
     @Override
-    public MemoryBlock malloc(MemoryType type, VkMemoryRequirements pMemReqs) {
-        final long size = pMemReqs.size();
-        final long alignment = pMemReqs.alignment();
+    public MemoryBlock tryMalloc(MemoryType type, VkMemoryRequirements pMemReqs, AllocationStrategy strategy) {
+        return this.tryMalloc(type, pMemReqs.size(), pMemReqs.alignment(), strategy);
+    }
+
+    synchronized MemoryBlock tryMalloc(final MemoryType type, final long size, final long alignment, final AllocationStrategy strategy) {
+        // blocks are aligned to their own size, so a block at least as large as the alignment is always aligned.
+        final int order = this.orderOf(Math.max(size, alignment));
+        // the smallest order with a free block is already the best fit, so MIN_MEMORY and MIN_TIME are the same search.
+        final int unit = AllocationStrategy.MIN_OFFSET == strategy ? this.findLowestFree(order) : this.findSmallestFree(order);
+
+        if (NO_BLOCK == unit) {
+            return null;
+        }
+
+        int freeOrder = this.orders[unit];
+
+        this.unlink(unit);
 
-        this.root.reclaim();
+        // split down to the requested order; the upper halves go back on the free lists.
+        while (freeOrder > order) {
+            freeOrder--;
 
-        var alloc = this.root.sub(size, alignment);
+            final int buddy = unit + (1 << freeOrder);
 
-        if (null == alloc) {
-            throw new OutOfMemoryError();
+            this.orders[buddy] = (byte) freeOrder;
+            this.types[buddy] = (byte) MemoryType.FREE.ordinal();
+            this.link(buddy);
         }
 
-        alloc.type = type;
-        alloc.align(alignment);
+        this.orders[unit] = (byte) order;
+        this.types[unit] = (byte) type.ordinal();
+        this.usedSize += this.minSize << order;
+        this.allocationCount++;
 
-        return alloc;
+        if (null != this.usageListener) {
+            this.usageListener.onUsageChanged(this.minSize << order);
+        }
+
+        return new BuddyBlockMemoryBlock(unit);
+    }
+
+    /**
+     * Reports every later change in allocated bytes to the listener, from inside the allocator's lock. The changes add
+     * up to the change in getFreeSize.
+     */
+    public synchronized void setUsageListener(final UsageListener listener) {
+        this.usageListener = listener;
     }
 
     @Override
@@ -68,146 +161,233 @@ public final class BuddyBlockMemoryAllocator implements MemoryAllocator {
         VK10.vkFreeMemory(this.getDevice(), this.handle, null);
     }
 
+    @Override
+    public synchronized void mapPersistently() {
+        if (!this.persistentlyMapped) {
+            this.persistentlyMapped = true;
+            this.map();
+        }
+    }
+
     @Override
     public VkDevice getDevice() {
         return Objects.requireNonNull(this.device.get(), "Device was lost!");
     }
 
+    @Override
+    public long getHandle() {
+        return this.handle;
+    }
+
     @Override
     public int getTypeIndex() {
         return this.typeIndex;
     }
 
     @Override
-    public boolean isEmpty() {
-        this.root.reclaim();
+    public synchronized boolean isEmpty() {
+        return 0L == this.usedSize;
+    }
 
-        return MemoryType.FREE == this.root.type;
+    @Override
+    public synchronized long getFreeSize() {
+        return this.orders.length * this.minSize - this.usedSize;
     }
 
-    private ByteBuffer map() {
-        if (null == this.address) {
-            try (var mem = MemoryStack.stackPush()) {
-                final var ppData = mem.callocPointer(1);
-                final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0L, this.size, 0, ppData);
+    @Override
+    public synchronized long getLargestFreeBlockSize() {
+        return 0 == this.freeOrders ? 0L : this.minSize << (Integer.SIZE - 1 - Integer.numberOfLeadingZeros(this.freeOrders));
+    }
 
-                assert VK10.VK_SUCCESS == err;
+    @Override
+    public synchronized int getAllocationCount() {
+        return this.allocationCount;
+    }
 
-                this.address = ppData.getByteBuffer(0, (int) this.size);
+    @Override
+    public synchronized void forEachFreeRange(final FreeRangeConsumer consumer) {
+        for (int order = 0; order <= this.maxOrder; order++) {
+            for (int unit = this.freeLists[order]; NO_BLOCK != unit; unit = this.nextFree[unit]) {
+                consumer.accept(unit * this.minSize, this.minSize << order);
             }
         }
+    }
 
-        this.mapCount++;
+    /**
+     * Blocks are placed at multiples of their own size.
+     */
+    @Override
+    public long getPlacementAlignment(final long size, final long alignment) {
+        return Math.max(alignment, this.minSize << this.orderOf(Math.max(size, alignment)));
+    }
 
-        return this.address;
+    private int orderOf(final long size) {
+        final long units = (size + this.minSize - 1) / this.minSize;
+
+        return units <= 1L ? 0 : Long.SIZE - Long.numberOfLeadingZeros(units - 1L);
     }
 
-    private void unmap() {
-        if (0 == --this.mapCount) {
-            this.address = null;
-            VK10.vkUnmapMemory(this.getDevice(), this.handle);
-        }
+    private int findSmallestFree(final int order) {
+        final int candidates = order < Integer.SIZE ? this.freeOrders & (-1 << order) : 0;
+
+        return 0 == candidates ? NO_BLOCK : this.freeLists[Integer.numberOfTrailingZeros(candidates)];
     }
 
-    private final class BuddyBlockMemoryBlock implements MemoryBlock {
-        private final long offset;
-        private final long size;
-        private MemoryType type;
-        private long alignedOffset;
-        private BuddyBlockMemoryBlock left, right;
-
-        private BuddyBlockMemoryBlock(final long offset, final long size) {
-            this.offset = offset;
-            this.size = size;
-            this.type = MemoryType.FREE;
-            this.alignedOffset = offset;
-            this.left = null;
-            this.right = null;
-        }
-
-        private void reclaim() {
-            if (null != this.left && null != this.right) {
-                this.left.reclaim();
-                this.right.reclaim();
-
-                if (MemoryType.FREE == this.left.type && MemoryType.FREE == this.right.type) {
-                    this.type = MemoryType.FREE;
-                    this.left = null;
-                    this.right = null;
+    private int findLowestFree(final int order) {
+        int out = NO_BLOCK;
+
+        for (int freeOrder = order; freeOrder <= this.maxOrder; freeOrder++) {
+            for (int unit = this.freeLists[freeOrder]; NO_BLOCK != unit; unit = this.nextFree[unit]) {
+                if (NO_BLOCK == out || unit < out) {
+                    out = unit;
                 }
             }
         }
 
-        private BuddyBlockMemoryBlock sub(final long size, final long alignment) {
-            if (null != this.left) {
-                final var out = this.left.sub(size, alignment);
+        return out;
+    }
 
-                if (out != null) {
-                    return out;
-                }
-            }
+    private boolean isFree(final int unit) {
+        return MemoryType.FREE.ordinal() == this.types[unit];
+    }
 
-            if (null != this.right) {
-                final var out = this.right.sub(size, alignment);
+    private void link(final int unit) {
+        final int order = this.orders[unit];
+        final int head = this.freeLists[order];
 
-                if (out != null) {
-                    return out;
-                }
-            }
+        this.prevFree[unit] = NO_BLOCK;
+        this.nextFree[unit] = head;
 
-            if (this.type != MemoryType.FREE) {
-                return null;
-            }
+        if (NO_BLOCK != head) {
+            this.prevFree[head] = unit;
+        }
+
+        this.freeLists[order] = unit;
+        this.freeOrders |= 1 << order;
+    }
 
-            this.align(alignment);
+    private void unlink(final int unit) {
+        final int prev = this.prevFree[unit];
+        final int next = this.nextFree[unit];
 
-            if (this.getSize() < size) {
-                return null;
+        if (NO_BLOCK != prev) {
+            this.nextFree[prev] = next;
+        } else {
+            this.freeLists[this.orders[unit]] = next;
+
+            if (NO_BLOCK == next) {
+                this.freeOrders &= ~(1 << this.orders[unit]);
             }
+        }
+
+        if (NO_BLOCK != next) {
+            this.prevFree[next] = prev;
+        }
 
-            final long halfSize = this.getSize() / 2;
+        this.prevFree[unit] = NO_BLOCK;
+        this.nextFree[unit] = NO_BLOCK;
+    }
 
-            if (halfSize < size || halfSize < minSize) {
-                // cant split; leave
-                return this;
+    /**
+     * Frees this allocator's blocks in address order under one lock, so that buddies freed together coalesce as the
+     * batch is walked.
+     */
+    @Override
+    public void freeBlocks(final List<? extends MemoryBlock> blocks) {
+        final var owned = new ArrayList<BuddyBlockMemoryBlock>(blocks.size());
+        final var others = new ArrayList<MemoryBlock>();
+
+        for (var block : blocks) {
+            if (block instanceof BuddyBlockMemoryBlock && this == ((BuddyBlockMemoryBlock) block).getAllocator()) {
+                owned.add((BuddyBlockMemoryBlock) block);
+            } else {
+                others.add(block);
             }
+        }
+
+        owned.sort(Comparator.comparingInt(block -> block.unit));
+
+        synchronized (this) {
+            owned.forEach(this::release);
+        }
 
-            // try subdividing
-            final var left = new BuddyBlockMemoryBlock(this.offset, halfSize);
-            final var right = new BuddyBlockMemoryBlock(this.offset + halfSize, halfSize);
+        others.forEach(MemoryBlock::free);
+    }
+
+    private synchronized void release(final BuddyBlockMemoryBlock block) {
+        if (block.released) {
+            return;
+        }
 
-            left.align(alignment);
-            right.align(alignment);
+        block.released = true;
 
-            if (left.getSize() >= size) {
-                this.type = MemoryType.UNKNOWN;
-                this.left = left;
-                this.right = right;
+        int merged = block.unit;
+        int order = this.orders[merged];
 
-                final var out = left.sub(size, alignment);
+        this.types[merged] = (byte) MemoryType.FREE.ordinal();
+        this.usedSize -= this.minSize << order;
+        this.allocationCount--;
 
-                if (out != null) {
-                    return out;
-                }
+        if (null != this.usageListener) {
+            this.usageListener.onUsageChanged(-(this.minSize << order));
+        }
+
+        // coalesce with the buddy for as long as the buddy is a whole, free block of the same order.
+        while (order < this.maxOrder) {
+            final int buddy = merged ^ (1 << order);
+
+            if (buddy >= this.orders.length || this.orders[buddy] != order || !this.isFree(buddy)) {
+                break;
             }
 
-            if (right.getSize() >= size) {
-                this.type = MemoryType.UNKNOWN;
-                this.left = left;
-                this.right = right;
+            this.unlink(buddy);
 
-                final var out = right.sub(size, alignment);
+            final int upper = Math.max(merged, buddy);
 
-                if (out != null) {
-                    return out;
-                }
+            this.orders[upper] = NO_ORDER;
+            merged = Math.min(merged, buddy);
+            this.orders[merged] = (byte) ++order;
+        }
+
+        this.link(merged);
+    }
+
+    private synchronized long map() {
+        if (MemoryUtil.NULL == this.address) {
+            try (var mem = MemoryStack.stackPush()) {
+                final var ppData = mem.callocPointer(1);
+                final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0L, this.size, 0, ppData);
+
+                assert VK10.VK_SUCCESS == err;
+
+                this.address = ppData.get(0);
             }
+        }
+
+        this.mapCount++;
 
-            return this;
+        return this.address;
+    }
+
+    private synchronized void unmap() {
+        if (0 == --this.mapCount) {
+            this.address = MemoryUtil.NULL;
+            VK10.vkUnmapMemory(this.getDevice(), this.handle);
         }
+    }
 
-        private void align(final long alignment) {
-            this.alignedOffset = MemoryAllocator.alignUp(this.offset, alignment);
+    /**
+     * A view of an allocated block. Only views are heap objects; the block tree itself lives in the allocator's
+     * primitive arrays.
+     */
+    private final class BuddyBlockMemoryBlock implements MemoryBlock {
+        private final int unit;
+        private final long size;
+        private boolean released;
+
+        private BuddyBlockMemoryBlock(final int unit) {
+            this.unit = unit;
+            this.size = BuddyBlockMemoryAllocator.this.minSize << BuddyBlockMemoryAllocator.this.orders[unit];
         }
 
         @Override
@@ -217,19 +397,22 @@ public final class BuddyBlockMemoryAllocator implements MemoryAllocator {
 
         @Override
         public long getOffset() {
-            return this.alignedOffset;
+            return this.unit * BuddyBlockMemoryAllocator.this.minSize;
         }
 
         @Override
         public long getSize() {
-            return this.offset + this.size - this.alignedOffset;
+            return this.size;
         }
 
         @Override
-        public ByteBuffer map() {
-            final var superBlock = BuddyBlockMemoryAllocator.this.map();
+        public long getMemorySize() {
+            return BuddyBlockMemoryAllocator.this.size;
+        }
 
-            return MemoryUtil.memSlice(superBlock, (int) this.getOffset(), (int) this.getSize());
+        @Override
+        public long mapAddress() {
+            return BuddyBlockMemoryAllocator.this.map() + this.getOffset();
         }
 
         @Override
@@ -237,11 +420,13 @@ public final class BuddyBlockMemoryAllocator implements MemoryAllocator {
             BuddyBlockMemoryAllocator.this.unmap();
         }
 
+        private BuddyBlockMemoryAllocator getAllocator() {
+            return BuddyBlockMemoryAllocator.this;
+        }
+
         @Override
         public void free() {
-            this.type = MemoryType.FREE;
-            this.left = null;
-            this.right = null;
+            BuddyBlockMemoryAllocator.this.release(this);
         }
 
         @Override
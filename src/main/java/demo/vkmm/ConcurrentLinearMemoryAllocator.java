@@ -0,0 +1,280 @@
+package demo.vkmm;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free multi-producer variant of LinearMemoryAllocator. Space is reserved from the shared pointer with an atomic
+ * fetch-add, in bufferImageGranularity pages. Each thread bumps through its own chunk per MemoryType, so resources in a
+ * chunk never conflict and neighbouring chunks never share a page. Requests larger than a quarter of a chunk, and
+ * UNKNOWN requests, reserve their own pages directly.
+ * <p>
+ * Thread-safe for malloc; clear must not run concurrently with malloc. Abandoned chunk tails are not reused until the
+ * allocator is cleared.
+ */
+public final class ConcurrentLinearMemoryAllocator implements MemoryAllocator {
+    private static final long DEFAULT_CHUNK_SIZE = 64L * 1024L;
+
+    private static final class Chunk {
+        private long pointer;
+        private long end;
+        private int generation = -1;
+    }
+
+    private final WeakReference<VkDevice> device;
+    private final long size;
+    private final long handle;
+    private final long pageSize;
+    private final long chunkSize;
+    private final int typeIndex;
+    private final AtomicLong pointer = new AtomicLong();
+    private final AtomicInteger allocationCount = new AtomicInteger();
+    // indexed by MemoryType ordinal.
+    private final ThreadLocal<Chunk[]> chunks = ThreadLocal.withInitial(() -> new Chunk[MemoryType.values().length]);
+    // incremented by clear; chunks reserved in an older generation are discarded.
+    private volatile int generation;
+    private long address;
+    private int mapCount;
+    private boolean persistentlyMapped;
+
+    public ConcurrentLinearMemoryAllocator(final VkDevice device, final VkMemoryAllocateInfo memoryAI, final long chunkSize)
+            throws MemoryAllocationException {
+        this.device = new WeakReference<>(device);
+        this.size = memoryAI.allocationSize();
+
+        try (var mem = MemoryStack.stackPush()) {
+            final var pPhysicalDeviceProps = VkPhysicalDeviceProperties.callocStack(mem);
+
+            VK10.vkGetPhysicalDeviceProperties(device.getPhysicalDevice(), pPhysicalDeviceProps);
+
+            this.pageSize = pPhysicalDeviceProps.limits().bufferImageGranularity();
+            this.typeIndex = memoryAI.memoryTypeIndex();
+
+            final var pHandle = mem.callocLong(1);
+            final int err = VK10.vkAllocateMemory(device, memoryAI, null, pHandle);
+
+            if (VK10.VK_SUCCESS != err) {
+                throw new MemoryAllocationException(err);
+            }
+
+            this.handle = pHandle.get();
+        }
+
+        this.chunkSize = MemoryAllocator.alignUp(chunkSize, this.pageSize);
+    }
+
+    public ConcurrentLinearMemoryAllocator(final VkDevice device, final VkMemoryAllocateInfo memoryAI) throws MemoryAllocationException {
+        this(device, memoryAI, DEFAULT_CHUNK_SIZE);
+    }
+
+    public void clear() {
+        this.generation++;
+        this.pointer.set(0L);
+        this.allocationCount.set(0);
+    }
+
+    @Override
+    public MemoryBlock tryMalloc(final MemoryType type, final VkMemoryRequirements pMemReqs, final AllocationStrategy strategy) {
+        final long requiredSize = pMemReqs.size();
+        final long alignment = pMemReqs.alignment();
+
+        if (MemoryType.UNKNOWN == type || requiredSize + alignment > this.chunkSize / 4) {
+            return this.mallocPages(requiredSize, alignment);
+        }
+
+        final var threadChunks = this.chunks.get();
+        var chunk = threadChunks[type.ordinal()];
+
+        if (null == chunk) {
+            chunk = threadChunks[type.ordinal()] = new Chunk();
+        }
+
+        final int generation = this.generation;
+        long offset = MemoryAllocator.alignUp(chunk.pointer, alignment);
+
+        if (generation != chunk.generation || offset + requiredSize > chunk.end) {
+            final long base = this.reserve(this.chunkSize);
+
+            if (base < 0L) {
+                return null;
+            }
+
+            chunk.end = base + this.chunkSize;
+            chunk.generation = generation;
+            offset = MemoryAllocator.alignUp(base, alignment);
+        }
+
+        chunk.pointer = offset + requiredSize;
+        this.allocationCount.incrementAndGet();
+
+        return new ConcurrentLinearMemoryBlock(offset, requiredSize);
+    }
+
+    /**
+     * Reserves whole pages for a single allocation, so it shares a page with nothing.
+     */
+    private MemoryBlock mallocPages(final long requiredSize, final long alignment) {
+        // pages are aligned to pageSize; any stricter alignment is made up by padding the front.
+        final long padding = Math.max(alignment, this.pageSize) - this.pageSize;
+        final long base = this.reserve(MemoryAllocator.alignUp(requiredSize + padding, this.pageSize));
+
+        if (base < 0L) {
+            return null;
+        }
+
+        this.allocationCount.incrementAndGet();
+
+        return new ConcurrentLinearMemoryBlock(MemoryAllocator.alignUp(base, alignment), requiredSize);
+    }
+
+    /**
+     * Reserves bytes from the shared pointer.
+     *
+     * @return the offset of the reservation or -1 if the memory is exhausted.
+     */
+    private long reserve(final long bytes) {
+        // the pointer may run past the end; every later reservation then fails until clear.
+        final long base = this.pointer.getAndAdd(bytes);
+
+        return base + bytes <= this.size ? base : -1L;
+    }
+
+    @Override
+    public void free() {
+        VK10.vkFreeMemory(this.getDevice(), this.handle, null);
+    }
+
+    @Override
+    public synchronized void mapPersistently() {
+        if (!this.persistentlyMapped) {
+            this.persistentlyMapped = true;
+            this.map();
+        }
+    }
+
+    @Override
+    public VkDevice getDevice() {
+        return Objects.requireNonNull(this.device.get(), "Device was lost!");
+    }
+
+    @Override
+    public long getHandle() {
+        return this.handle;
+    }
+
+    @Override
+    public int getTypeIndex() {
+        return this.typeIndex;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return 0L == this.pointer.get();
+    }
+
+    @Override
+    public long getFreeSize() {
+        return Math.max(0L, this.size - this.pointer.get());
+    }
+
+    /**
+     * Retrieves the unreserved bytes. Space left in the threads' chunks is not included.
+     */
+    @Override
+    public long getLargestFreeBlockSize() {
+        return this.getFreeSize();
+    }
+
+    @Override
+    public int getAllocationCount() {
+        return this.allocationCount.get();
+    }
+
+    @Override
+    public void forEachFreeRange(final FreeRangeConsumer consumer) {
+        final long reserved = this.pointer.get();
+
+        if (reserved < this.size) {
+            consumer.accept(reserved, this.size - reserved);
+        }
+    }
+
+    private synchronized long map() {
+        if (MemoryUtil.NULL == this.address) {
+            try (var mem = MemoryStack.stackPush()) {
+                final var ppData = mem.callocPointer(1);
+                final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0L, this.size, 0, ppData);
+
+                assert VK10.VK_SUCCESS == err;
+
+                this.address = ppData.get(0);
+            }
+        }
+
+        this.mapCount++;
+
+        return this.address;
+    }
+
+    private synchronized void unmap() {
+        if (0 == --this.mapCount) {
+            this.address = MemoryUtil.NULL;
+            VK10.vkUnmapMemory(this.getDevice(), this.handle);
+        }
+    }
+
+    private final class ConcurrentLinearMemoryBlock implements MemoryBlock {
+        private final long offset;
+        private final long size;
+
+        private ConcurrentLinearMemoryBlock(final long offset, final long size) {
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public long getHandle() {
+            return ConcurrentLinearMemoryAllocator.this.handle;
+        }
+
+        @Override
+        public long getOffset() {
+            return this.offset;
+        }
+
+        @Override
+        public long getSize() {
+            return this.size;
+        }
+
+        @Override
+        public long getMemorySize() {
+            return ConcurrentLinearMemoryAllocator.this.size;
+        }
+
+        @Override
+        public long mapAddress() {
+            return ConcurrentLinearMemoryAllocator.this.map() + this.getOffset();
+        }
+
+        @Override
+        public void unmap() {
+            ConcurrentLinearMemoryAllocator.this.unmap();
+        }
+
+        @Override
+        public void free() {
+        }
+
+        @Override
+        public VkDevice getDevice() {
+            return ConcurrentLinearMemoryAllocator.this.getDevice();
+        }
+    }
+}
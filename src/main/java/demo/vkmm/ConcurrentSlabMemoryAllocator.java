@@ -0,0 +1,389 @@
+package demo.vkmm;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VK10;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free variant of SlabMemoryAllocator. Slabs are claimed and released with compare-and-set on the free bitmap
+ * words, so malloc and free never block. Thread-safe: only mapping synchronizes on the allocator.
+ */
+public final class ConcurrentSlabMemoryAllocator implements MemoryAllocator {
+    private static final VarHandle RELEASED;
+
+    static {
+        try {
+            RELEASED = MethodHandles.lookup().findVarHandle(ConcurrentSlabMemoryBlock.class, "released", boolean.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final WeakReference<VkDevice> device;
+    private final long handle;
+    private final long size;
+    private final SlabList[] lists;
+    // the lists ordered by slab size, smallest first.
+    private final SlabList[] listsBySize;
+    private final int typeIndex;
+    private long address;
+    private int mapCount;
+    private boolean persistentlyMapped;
+
+    public ConcurrentSlabMemoryAllocator(final VkDevice device, final int typeIndex, final List<SlabMemoryAllocator.SlabSizeInfo> sizeInfos)
+            throws MemoryAllocationException {
+        this.device = new WeakReference<>(device);
+        this.size = sizeInfos.stream()
+                .mapToLong(sizeInfo -> sizeInfo.size * sizeInfo.count)
+                .sum();
+
+        this.typeIndex = typeIndex;
+
+        try (var mem = MemoryStack.stackPush()) {
+            final var pMemoryAI = VkMemoryAllocateInfo.callocStack(mem)
+                    .sType(VK10.VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+                    .memoryTypeIndex(typeIndex)
+                    .allocationSize(this.size);
+
+            final var pHandle = mem.callocLong(1);
+            final int err = VK10.vkAllocateMemory(device, pMemoryAI, null, pHandle);
+
+            if (VK10.VK_SUCCESS != err) {
+                throw new MemoryAllocationException(err);
+            }
+
+            this.handle = pHandle.get();
+        }
+
+        this.lists = new SlabList[sizeInfos.size()];
+
+        long offset = 0L;
+        for (int i = 0; i < this.lists.length; i++) {
+            final var sizeInfo = sizeInfos.get(i);
+
+            this.lists[i] = new SlabList(offset, sizeInfo.size, sizeInfo.count);
+            offset += sizeInfo.count * sizeInfo.size;
+        }
+
+        this.listsBySize = this.lists.clone();
+        Arrays.sort(this.listsBySize, Comparator.comparingLong(slabList -> slabList.size));
+    }
+
+    public ConcurrentSlabMemoryAllocator(final VkDevice device, final int typeIndex, final SlabMemoryAllocator.SlabSizeInfo... sizeInfos)
+            throws MemoryAllocationException {
+        this(device, typeIndex, Arrays.asList(sizeInfos));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (var slabList : this.lists) {
+            if (slabList.freeCount.get() != slabList.count) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public long getFreeSize() {
+        long out = 0L;
+
+        for (var slabList : this.lists) {
+            out += slabList.freeCount.get() * slabList.size;
+        }
+
+        return out;
+    }
+
+    @Override
+    public long getLargestFreeBlockSize() {
+        long out = 0L;
+
+        for (var slabList : this.lists) {
+            if (0 != slabList.freeCount.get()) {
+                out = Math.max(out, slabList.size);
+            }
+        }
+
+        return out;
+    }
+
+    @Override
+    public int getAllocationCount() {
+        int out = 0;
+
+        for (var slabList : this.lists) {
+            out += slabList.count - slabList.freeCount.get();
+        }
+
+        return out;
+    }
+
+    /**
+     * Reports a snapshot of the free slabs; slabs claimed or released concurrently may or may not be included.
+     */
+    @Override
+    public void forEachFreeRange(final FreeRangeConsumer consumer) {
+        for (var slabList : this.lists) {
+            for (int word = 0; word < slabList.freeBits.length(); word++) {
+                for (long bits = slabList.freeBits.get(word); 0L != bits; bits &= bits - 1L) {
+                    final int slab = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+
+                    consumer.accept(slabList.offsetOf(slab), slabList.size);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getHandle() {
+        return this.handle;
+    }
+
+    @Override
+    public int getTypeIndex() {
+        return this.typeIndex;
+    }
+
+    /**
+     * MIN_MEMORY takes a slab from the smallest size that fits. MIN_OFFSET takes the lowest slab that was free when the
+     * bitmap was scanned; the lists are laid out in order, so earlier lists are preferred. MIN_TIME takes the first slab
+     * found from a per-thread starting point, so that threads do not race for the same bitmap word.
+     */
+    @Override
+    public MemoryBlock tryMalloc(final MemoryType type, final VkMemoryRequirements pMemReqs, final AllocationStrategy strategy) {
+        final var requiredSize = pMemReqs.size();
+        final var alignment = pMemReqs.alignment();
+
+        for (var slabList : AllocationStrategy.MIN_MEMORY == strategy ? this.listsBySize : this.lists) {
+            if (slabList.size < requiredSize) {
+                continue;
+            }
+
+            final int slab = slabList.claim(AllocationStrategy.MIN_TIME == strategy);
+
+            if (slab < 0) {
+                continue;
+            }
+
+            final long offset = slabList.offsetOf(slab);
+            final long alignedOffset = MemoryAllocator.alignUp(offset, alignment);
+
+            if (offset + slabList.size - alignedOffset >= requiredSize) {
+                return new ConcurrentSlabMemoryBlock(slabList, slab, alignedOffset);
+            }
+
+            // every slab in the list shares the same alignment; give it back and try the next list.
+            slabList.release(slab);
+        }
+
+        return null;
+    }
+
+    private synchronized long map() {
+        if (MemoryUtil.NULL == this.address) {
+            try (var mem = MemoryStack.stackPush()) {
+                final var ppData = mem.callocPointer(1);
+                final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0L, this.size, 0, ppData);
+
+                assert VK10.VK_SUCCESS == err;
+
+                this.address = ppData.get(0);
+            }
+        }
+
+        this.mapCount++;
+
+        return this.address;
+    }
+
+    private synchronized void unmap() {
+        if (0 == --this.mapCount) {
+            this.address = MemoryUtil.NULL;
+            VK10.vkUnmapMemory(this.getDevice(), this.handle);
+        }
+    }
+
+    @Override
+    public void free() {
+        VK10.vkFreeMemory(this.getDevice(), this.handle, null);
+    }
+
+    @Override
+    public synchronized void mapPersistently() {
+        if (!this.persistentlyMapped) {
+            this.persistentlyMapped = true;
+            this.map();
+        }
+    }
+
+    @Override
+    public VkDevice getDevice() {
+        return Objects.requireNonNull(this.device.get(), "Device was lost!");
+    }
+
+    private final class ConcurrentSlabMemoryBlock implements MemoryBlock {
+        private final SlabList list;
+        private final int slab;
+        private final long alignedOffset;
+        // not private so the RELEASED VarHandle can reach it on runtimes that predate nestmate access.
+        volatile boolean released;
+
+        private ConcurrentSlabMemoryBlock(final SlabList list, final int slab, final long alignedOffset) {
+            this.list = list;
+            this.slab = slab;
+            this.alignedOffset = alignedOffset;
+        }
+
+        @Override
+        public long getHandle() {
+            return ConcurrentSlabMemoryAllocator.this.handle;
+        }
+
+        @Override
+        public long getOffset() {
+            return this.alignedOffset;
+        }
+
+        @Override
+        public long getSize() {
+            return this.list.offsetOf(this.slab) + this.list.size - this.alignedOffset;
+        }
+
+        @Override
+        public long getMemorySize() {
+            return ConcurrentSlabMemoryAllocator.this.size;
+        }
+
+        @Override
+        public long mapAddress() {
+            return ConcurrentSlabMemoryAllocator.this.map() + this.getOffset();
+        }
+
+        @Override
+        public void unmap() {
+            ConcurrentSlabMemoryAllocator.this.unmap();
+        }
+
+        @Override
+        public void free() {
+            if (RELEASED.compareAndSet(this, false, true)) {
+                this.list.release(this.slab);
+            }
+        }
+
+        @Override
+        public VkDevice getDevice() {
+            return ConcurrentSlabMemoryAllocator.this.getDevice();
+        }
+    }
+
+    /**
+     * The slabs of one size. Package-private so the bitmap can be exercised without a VkDevice.
+     */
+    static final class SlabList {
+        private final long baseOffset;
+        private final long size;
+        private final int count;
+        // one bit per slab; a set bit marks a free slab.
+        private final AtomicLongArray freeBits;
+        private final AtomicInteger freeCount;
+
+        SlabList(final long baseOffset, final long size, final int count) {
+            this.baseOffset = baseOffset;
+            this.size = size;
+            this.count = count;
+            this.freeBits = new AtomicLongArray((count + Long.SIZE - 1) / Long.SIZE);
+            this.freeCount = new AtomicInteger(count);
+
+            for (int word = 0; word < this.freeBits.length(); word++) {
+                this.freeBits.set(word, -1L);
+            }
+
+            if (0 != count % Long.SIZE) {
+                this.freeBits.set(this.freeBits.length() - 1, (1L << count) - 1L);
+            }
+        }
+
+        private long offsetOf(final int slab) {
+            return this.baseOffset + this.size * slab;
+        }
+
+        /**
+         * Claims a free slab.
+         *
+         * @param spread start at a per-thread word so threads spread out over the bitmap instead of racing for the first
+         *               word; otherwise the lowest free slab is claimed.
+         * @return the slab index or -1 if every slab is in use.
+         */
+        int claim(final boolean spread) {
+            final int words = this.freeBits.length();
+            final int start = spread ? (int) (Thread.currentThread().getId() % words) : 0;
+
+            // a pass can miss a slab that was released behind it; keep scanning while the count says one is free.
+            while (0 < this.freeCount.get()) {
+                for (int i = 0; i < words; i++) {
+                    final int word = (start + i) % words;
+                    long bits = this.freeBits.get(word);
+
+                    while (0L != bits) {
+                        final long claimed = bits & (bits - 1L);
+
+                        if (this.freeBits.compareAndSet(word, bits, claimed)) {
+                            this.freeCount.decrementAndGet();
+
+                            return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                        }
+
+                        bits = this.freeBits.get(word);
+                    }
+                }
+            }
+
+            return -1;
+        }
+
+        void release(final int slab) {
+            final int word = slab / Long.SIZE;
+            final long mask = 1L << slab;
+            long bits;
+
+            do {
+                bits = this.freeBits.get(word);
+            } while (!this.freeBits.compareAndSet(word, bits, bits | mask));
+
+            this.freeCount.incrementAndGet();
+        }
+
+        int getFreeCount() {
+            return this.freeCount.get();
+        }
+
+        /**
+         * Counts the set bits of the bitmap, which matches getFreeCount whenever no claim or release is in flight.
+         */
+        int countFreeBits() {
+            int out = 0;
+
+            for (int word = 0; word < this.freeBits.length(); word++) {
+                out += Long.bitCount(this.freeBits.get(word));
+            }
+
+            return out;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package demo.vkmm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Plans relocations that empty as many heaps as possible by moving their live allocations into the free ranges of the
+ * other heaps. The planner only sees a description of each heap, so it can be run against synthetic layouts.
+ * <p>
+ * Heaps are evacuated in order of fewest live bytes first, and only if every one of their allocations can be placed.
+ * Allocations are placed largest first into the fullest heap that has room, using the smallest free range that fits.
+ * The plan models free space as plain ranges; allocators that round or split differently may still refuse a move.
+ */
+public final class DefragmentationPlanner {
+    /**
+     * Description of one heap: its free ranges and the allocations that may be moved out of it.
+     */
+    public static final class Heap {
+        private final boolean pinned;
+        // interleaved (offset, size) pairs.
+        private long[] freeRanges = new long[16];
+        private int freeRangeCount;
+        // interleaved (size, alignment) pairs.
+        private long[] allocations = new long[16];
+        private int allocationCount;
+
+        /**
+         * @param pinned true if the heap holds allocations that cannot be moved. A pinned heap is never evacuated, but
+         *               it can receive allocations from other heaps.
+         */
+        public Heap(final boolean pinned) {
+            this.pinned = pinned;
+        }
+
+        public Heap addFreeRange(final long offset, final long size) {
+            if (this.freeRanges.length == 2 * this.freeRangeCount) {
+                this.freeRanges = Arrays.copyOf(this.freeRanges, this.freeRanges.length * 2);
+            }
+
+            this.freeRanges[2 * this.freeRangeCount] = offset;
+            this.freeRanges[2 * this.freeRangeCount + 1] = size;
+            this.freeRangeCount++;
+
+            return this;
+        }
+
+        /**
+         * Adds a movable allocation. Allocations are identified in the plan by the order they were added in.
+         */
+        public Heap addAllocation(final long size, final long alignment) {
+            if (this.allocations.length == 2 * this.allocationCount) {
+                this.allocations = Arrays.copyOf(this.allocations, this.allocations.length * 2);
+            }
+
+            this.allocations[2 * this.allocationCount] = size;
+            this.allocations[2 * this.allocationCount + 1] = alignment;
+            this.allocationCount++;
+
+            return this;
+        }
+
+        private long getSize(final int allocation) {
+            return this.allocations[2 * allocation];
+        }
+
+        private long getAlignment(final int allocation) {
+            return this.allocations[2 * allocation + 1];
+        }
+
+        private long getLiveSize() {
+            long out = 0L;
+
+            for (int i = 0; i < this.allocationCount; i++) {
+                out += this.getSize(i);
+            }
+
+            return out;
+        }
+    }
+
+    public static final class Move {
+        public final int sourceHeap;
+        public final int allocation;
+        public final int destinationHeap;
+        public final long destinationOffset;
+        public final long size;
+
+        private Move(final int sourceHeap, final int allocation, final int destinationHeap, final long destinationOffset, final long size) {
+            this.sourceHeap = sourceHeap;
+            this.allocation = allocation;
+            this.destinationHeap = destinationHeap;
+            this.destinationOffset = destinationOffset;
+            this.size = size;
+        }
+    }
+
+    public static final class Plan {
+        /**
+         * Every move, grouped by source heap in the order the heaps are evacuated.
+         */
+        public final List<Move> moves;
+        /**
+         * Heaps that hold no allocations once every move is done, in evacuation order.
+         */
+        public final int[] evacuatedHeaps;
+
+        private Plan(final List<Move> moves, final int[] evacuatedHeaps) {
+            this.moves = Collections.unmodifiableList(moves);
+            this.evacuatedHeaps = evacuatedHeaps;
+        }
+
+        public long getMovedSize() {
+            return this.moves.stream()
+                    .mapToLong(move -> move.size)
+                    .sum();
+        }
+    }
+
+    private DefragmentationPlanner() {}
+
+    public static Plan plan(final List<Heap> heaps) {
+        final int heapCount = heaps.size();
+        final var freeRanges = new FreeRanges[heapCount];
+        final var freeSizes = new long[heapCount];
+        final var liveSizes = new long[heapCount];
+        final var evacuated = new boolean[heapCount];
+        final var received = new boolean[heapCount];
+
+        for (int i = 0; i < heapCount; i++) {
+            final var heap = heaps.get(i);
+
+            freeRanges[i] = new FreeRanges(heap.freeRanges, heap.freeRangeCount);
+            freeSizes[i] = freeRanges[i].getTotalSize();
+            liveSizes[i] = heap.getLiveSize();
+        }
+
+        final var sources = IntStream.range(0, heapCount)
+                .filter(i -> !heaps.get(i).pinned && 0 != heaps.get(i).allocationCount)
+                .boxed()
+                .sorted(Comparator.comparingLong(i -> liveSizes[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        final var moves = new ArrayList<Move>();
+        final var evacuatedHeaps = new ArrayList<Integer>();
+
+        for (int source : sources) {
+            // a heap that already took allocations is denser than any remaining source; keep it.
+            if (received[source]) {
+                continue;
+            }
+
+            final var heap = heaps.get(source);
+            final var destinations = IntStream.range(0, heapCount)
+                    .filter(i -> i != source && !evacuated[i])
+                    .boxed()
+                    .sorted(Comparator.comparingLong(i -> freeSizes[i]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+
+            final var allocations = IntStream.range(0, heap.allocationCount)
+                    .boxed()
+                    .sorted(Comparator.comparingLong(heap::getSize).reversed())
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+
+            // place into copies so a heap that cannot be fully evacuated leaves no trace.
+            final var trial = new HashMap<Integer, FreeRanges>();
+            final var pending = new ArrayList<Move>();
+
+            boolean placed = true;
+
+            for (int allocation : allocations) {
+                final long size = heap.getSize(allocation);
+                final long alignment = heap.getAlignment(allocation);
+                long offset = -1L;
+
+                for (int destination : destinations) {
+                    offset = trial.computeIfAbsent(destination, i -> freeRanges[i].copy()).place(size, alignment);
+
+                    if (offset >= 0L) {
+                        pending.add(new Move(source, allocation, destination, offset, size));
+                        break;
+                    }
+                }
+
+                if (offset < 0L) {
+                    placed = false;
+                    break;
+                }
+            }
+
+            if (!placed) {
+                continue;
+            }
+
+            trial.forEach((destination, ranges) -> freeRanges[destination] = ranges);
+
+            for (var move : pending) {
+                freeSizes[move.destinationHeap] -= move.size;
+                received[move.destinationHeap] = true;
+            }
+
+            evacuated[source] = true;
+            evacuatedHeaps.add(source);
+            moves.addAll(pending);
+        }
+
+        return new Plan(moves, evacuatedHeaps.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * Growable set of free ranges stored as interleaved (offset, size) pairs.
+     */
+    private static final class FreeRanges {
+        private long[] ranges;
+        private int count;
+
+        private FreeRanges(final long[] ranges, final int count) {
+            this.ranges = Arrays.copyOf(ranges, Math.max(2, 2 * count));
+            this.count = count;
+        }
+
+        private FreeRanges copy() {
+            return new FreeRanges(this.ranges, this.count);
+        }
+
+        private long getTotalSize() {
+            long out = 0L;
+
+            for (int i = 0; i < this.count; i++) {
+                out += this.ranges[2 * i + 1];
+            }
+
+            return out;
+        }
+
+        /**
+         * Places an allocation in the smallest range that fits it.
+         *
+         * @return the offset of the allocation or -1 if no range fits.
+         */
+        private long place(final long size, final long alignment) {
+            int best = -1;
+
+            for (int i = 0; i < this.count; i++) {
+                final long offset = this.ranges[2 * i];
+                final long rangeSize = this.ranges[2 * i + 1];
+                final long alignedOffset = MemoryAllocator.alignUp(offset, alignment);
+
+                if (alignedOffset + size <= offset + rangeSize && (-1 == best || rangeSize < this.ranges[2 * best + 1])) {
+                    best = i;
+                }
+            }
+
+            if (-1 == best) {
+                return -1L;
+            }
+
+            final long offset = this.ranges[2 * best];
+            final long end = offset + this.ranges[2 * best + 1];
+            final long alignedOffset = MemoryAllocator.alignUp(offset, alignment);
+
+            // the last range takes the chosen range's slot so the array stays dense.
+            this.count--;
+            this.ranges[2 * best] = this.ranges[2 * this.count];
+            this.ranges[2 * best + 1] = this.ranges[2 * this.count + 1];
+
+            if (alignedOffset > offset) {
+                this.add(offset, alignedOffset - offset);
+            }
+
+            if (alignedOffset + size < end) {
+                this.add(alignedOffset + size, end - alignedOffset - size);
+            }
+
+            return alignedOffset;
+        }
+
+        private void add(final long offset, final long size) {
+            if (this.ranges.length == 2 * this.count) {
+                this.ranges = Arrays.copyOf(this.ranges, this.ranges.length * 2);
+            }
+
+            this.ranges[2 * this.count] = offset;
+            this.ranges[2 * this.count + 1] = size;
+            this.count++;
+        }
+    }
+}
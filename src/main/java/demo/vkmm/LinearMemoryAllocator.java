@@ -5,9 +5,11 @@ import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.*;
 
 import java.lang.ref.WeakReference;
-import java.nio.ByteBuffer;
 import java.util.Objects;
 
+/**
+ * Bump allocator over a single VkDeviceMemory. Not thread-safe; callers must provide their own synchronization.
+ */
 public final class LinearMemoryAllocator implements MemoryAllocator {
     private final WeakReference<VkDevice> device;
     private final long size;
@@ -15,9 +17,11 @@ public final class LinearMemoryAllocator implements MemoryAllocator {
     private final long pageSize;
     private final int typeIndex;
     private long pointer;
+    private int allocationCount;
     private MemoryType lastType = MemoryType.FREE;
-    private ByteBuffer address;
+    private long address;
     private int mapCount;
+    private boolean persistentlyMapped;
 
     public LinearMemoryAllocator(final VkDevice device, final VkMemoryAllocateInfo memoryAI) {
         this.device = new WeakReference<>(device);
@@ -42,24 +46,26 @@ public final class LinearMemoryAllocator implements MemoryAllocator {
 
     public void clear() {
         this.pointer = 0L;
+        this.allocationCount = 0;
     }
 
     @Override
-    public MemoryBlock malloc(MemoryType type, VkMemoryRequirements pMemReqs) {
+    public MemoryBlock tryMalloc(MemoryType type, VkMemoryRequirements pMemReqs, AllocationStrategy strategy) {
         long alignedSize = MemoryAllocator.alignUp(pMemReqs.size(), pMemReqs.alignment());
 
         if (this.lastType.conflicts(type)) {
             alignedSize = MemoryAllocator.alignUp(alignedSize, this.pageSize);
         }
 
-        if (this.pageSize + alignedSize > this.pointer + this.size) {
-            throw new OutOfMemoryError();
+        if (this.pointer + alignedSize > this.size) {
+            return null;
         }
 
         final var out = new LinearMemoryBlock(this.pointer, alignedSize);
 
         this.lastType = type;
         this.pointer += alignedSize;
+        this.allocationCount++;
 
         return out;
     }
@@ -69,11 +75,24 @@ public final class LinearMemoryAllocator implements MemoryAllocator {
         VK10.vkFreeMemory(this.getDevice(), this.handle, null);
     }
 
+    @Override
+    public void mapPersistently() {
+        if (!this.persistentlyMapped) {
+            this.persistentlyMapped = true;
+            this.map();
+        }
+    }
+
     @Override
     public VkDevice getDevice() {
         return Objects.requireNonNull(this.device.get(), "Device was lost!");
     }
 
+    @Override
+    public long getHandle() {
+        return this.handle;
+    }
+
     @Override
     public int getTypeIndex() {
         return this.typeIndex;
@@ -84,15 +103,37 @@ public final class LinearMemoryAllocator implements MemoryAllocator {
         return this.pointer == 0L;
     }
 
-    private ByteBuffer map() {
-        if (this.address == null) {
+    @Override
+    public long getFreeSize() {
+        return this.size - this.pointer;
+    }
+
+    @Override
+    public long getLargestFreeBlockSize() {
+        return this.size - this.pointer;
+    }
+
+    @Override
+    public int getAllocationCount() {
+        return this.allocationCount;
+    }
+
+    @Override
+    public void forEachFreeRange(final FreeRangeConsumer consumer) {
+        if (this.pointer < this.size) {
+            consumer.accept(this.pointer, this.size - this.pointer);
+        }
+    }
+
+    private long map() {
+        if (MemoryUtil.NULL == this.address) {
             try (var mem = MemoryStack.stackPush()) {
                 final var ppData = mem.callocPointer(1);
                 final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0L, this.size, 0, ppData);
 
                 assert VK10.VK_SUCCESS == err;
 
-                this.address = ppData.getByteBuffer(0, (int) this.size);
+                this.address = ppData.get(0);
             }
         }
 
@@ -103,7 +144,7 @@ public final class LinearMemoryAllocator implements MemoryAllocator {
 
     private void unmap() {
         if (--this.mapCount == 0) {
-            this.address = null;
+            this.address = MemoryUtil.NULL;
             VK10.vkUnmapMemory(this.getDevice(), this.handle);
         }
     }
@@ -133,10 +174,13 @@ public final class LinearMemoryAllocator implements MemoryAllocator {
         }
 
         @Override
-        public ByteBuffer map() {
-            final var superBlock = LinearMemoryAllocator.this.map();
+        public long getMemorySize() {
+            return LinearMemoryAllocator.this.size;
+        }
 
-            return MemoryUtil.memSlice(superBlock, (int) this.offset, (int) this.size);
+        @Override
+        public long mapAddress() {
+            return LinearMemoryAllocator.this.map() + this.getOffset();
         }
 
         @Override
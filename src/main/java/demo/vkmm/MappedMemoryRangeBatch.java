@@ -0,0 +1,161 @@
+package demo.vkmm;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VK10;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMappedMemoryRange;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Collects mapped ranges of non-coherent memory and flushes or invalidates all of them with a single call.
+ * Ranges are rounded out to nonCoherentAtomSize, then overlapping and adjacent ranges of the same VkDeviceMemory are
+ * merged. A range that would be rounded past the end of its VkDeviceMemory ends at the end of the memory instead, as
+ * Vulkan requires for memory that is not sized in a multiple of the atom size.
+ * <p>
+ * Not thread-safe; a batch is intended to be filled and submitted once per frame by a single thread.
+ */
+public final class MappedMemoryRangeBatch {
+    // nonCoherentAtomSize of each device; MemoryBlock.flush creates a batch per call, so the limit is queried once.
+    private static final Map<VkDevice, Long> ATOM_SIZES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final WeakReference<VkDevice> device;
+    private final long atomSize;
+    private long[] handles = new long[16];
+    private long[] starts = new long[16];
+    private long[] ends = new long[16];
+    private int count;
+
+    public MappedMemoryRangeBatch(final VkDevice device) {
+        this.device = new WeakReference<>(device);
+        this.atomSize = ATOM_SIZES.computeIfAbsent(device, MappedMemoryRangeBatch::getNonCoherentAtomSize);
+    }
+
+    private static long getNonCoherentAtomSize(final VkDevice device) {
+        try (var mem = MemoryStack.stackPush()) {
+            final var pPhysicalDeviceProperties = VkPhysicalDeviceProperties.callocStack(mem);
+
+            VK10.vkGetPhysicalDeviceProperties(device.getPhysicalDevice(), pPhysicalDeviceProperties);
+
+            return pPhysicalDeviceProperties.limits().nonCoherentAtomSize();
+        }
+    }
+
+    public MappedMemoryRangeBatch add(final MemoryBlock block) {
+        return this.add(block, 0L, block.getSize());
+    }
+
+    /**
+     * Adds size bytes that start offset bytes into a block.
+     */
+    public MappedMemoryRangeBatch add(final MemoryBlock block, final long offset, final long size) {
+        if (offset < 0L || size < 0L || offset + size > block.getSize()) {
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + (offset + size) + ") is outside of the MemoryBlock!");
+        }
+
+        if (this.handles.length == this.count) {
+            this.handles = Arrays.copyOf(this.handles, this.count * 2);
+            this.starts = Arrays.copyOf(this.starts, this.count * 2);
+            this.ends = Arrays.copyOf(this.ends, this.count * 2);
+        }
+
+        final long start = block.getOffset() + offset;
+
+        this.handles[this.count] = block.getHandle();
+        this.starts[this.count] = start / this.atomSize * this.atomSize;
+        this.ends[this.count] = Math.min(MemoryAllocator.alignUp(start + size, this.atomSize), block.getMemorySize());
+        this.count++;
+
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return 0 == this.count;
+    }
+
+    public void clear() {
+        this.count = 0;
+    }
+
+    /**
+     * Flushes every range with one vkFlushMappedMemoryRanges call and clears the batch.
+     *
+     * @return the VkResult; VK_SUCCESS if the batch was empty.
+     */
+    public int flush() {
+        return this.submit(true);
+    }
+
+    /**
+     * Invalidates every range with one vkInvalidateMappedMemoryRanges call and clears the batch.
+     *
+     * @return the VkResult; VK_SUCCESS if the batch was empty.
+     */
+    public int invalidate() {
+        return this.submit(false);
+    }
+
+    private int submit(final boolean flush) {
+        if (0 == this.count) {
+            return VK10.VK_SUCCESS;
+        }
+
+        final var order = IntStream.range(0, this.count)
+                .boxed()
+                .sorted(Comparator.<Integer> comparingLong(i -> this.handles[i]).thenComparingLong(i -> this.starts[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        final var pRanges = VkMappedMemoryRange.calloc(this.count);
+
+        try {
+            int merged = 0;
+            long handle = VK10.VK_NULL_HANDLE;
+            long start = 0L;
+            long end = 0L;
+
+            for (int i : order) {
+                // sorted by start, so a range either extends the current one or begins after a gap.
+                if (merged > 0 && this.handles[i] == handle && this.starts[i] <= end) {
+                    end = Math.max(end, this.ends[i]);
+                    continue;
+                }
+
+                if (merged > 0) {
+                    pRanges.get(merged - 1).size(end - start);
+                }
+
+                handle = this.handles[i];
+                start = this.starts[i];
+                end = this.ends[i];
+
+                pRanges.get(merged++)
+                        .sType(VK10.VK_STRUCTURE_TYPE_MAPPED_MEMORY_RANGE)
+                        .memory(handle)
+                        .offset(start);
+            }
+
+            pRanges.get(merged - 1).size(end - start);
+            pRanges.limit(merged);
+
+            return flush
+                    ? VK10.vkFlushMappedMemoryRanges(this.getDevice(), pRanges)
+                    : VK10.vkInvalidateMappedMemoryRanges(this.getDevice(), pRanges);
+        } finally {
+            pRanges.free();
+            this.count = 0;
+        }
+    }
+
+    public VkDevice getDevice() {
+        return Objects.requireNonNull(this.device.get(), "Device was lost!");
+    }
+}
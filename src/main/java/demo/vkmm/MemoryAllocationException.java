@@ -0,0 +1,24 @@
+package demo.vkmm;
+
+/**
+ * Thrown when vkAllocateMemory fails. Unlike OutOfMemoryError, it can be caught without also catching Java heap
+ * exhaustion.
+ */
+public final class MemoryAllocationException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int result;
+
+    public MemoryAllocationException(final int result) {
+        super("vkAllocateMemory failed with error: " + result);
+
+        this.result = result;
+    }
+
+    /**
+     * Retrieves the VkResult returned by vkAllocateMemory.
+     */
+    public int getResult() {
+        return this.result;
+    }
+}
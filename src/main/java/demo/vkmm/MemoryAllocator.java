@@ -3,17 +3,107 @@ package demo.vkmm;
 import org.lwjgl.vulkan.VkDevice;
 import org.lwjgl.vulkan.VkMemoryRequirements;
 
+import java.util.List;
+
 public interface MemoryAllocator {
-    MemoryBlock malloc(MemoryType type, VkMemoryRequirements pMemReqs);
+    @FunctionalInterface
+    interface FreeRangeConsumer {
+        void accept(long offset, long size);
+    }
+
+    /**
+     * Receives the change in allocated bytes each time an allocator allocates or frees a block.
+     */
+    @FunctionalInterface
+    interface UsageListener {
+        void onUsageChanged(long delta);
+    }
+
+    /**
+     * Attempts to allocate memory without throwing.
+     *
+     * @param strategy placement hint; allocators with only one possible placement ignore it.
+     * @return the MemoryBlock or null if the allocator cannot fit the request.
+     */
+    MemoryBlock tryMalloc(MemoryType type, VkMemoryRequirements pMemReqs, AllocationStrategy strategy);
+
+    default MemoryBlock tryMalloc(MemoryType type, VkMemoryRequirements pMemReqs) {
+        return this.tryMalloc(type, pMemReqs, AllocationStrategy.MIN_TIME);
+    }
+
+    default MemoryBlock malloc(MemoryType type, VkMemoryRequirements pMemReqs, AllocationStrategy strategy) {
+        final var out = this.tryMalloc(type, pMemReqs, strategy);
+
+        if (null == out) {
+            throw new OutOfMemoryError();
+        }
+
+        return out;
+    }
+
+    default MemoryBlock malloc(MemoryType type, VkMemoryRequirements pMemReqs) {
+        return this.malloc(type, pMemReqs, AllocationStrategy.MIN_TIME);
+    }
 
     void free();
 
+    /**
+     * Frees a batch of blocks. Allocators that override this take their lock once for every block of theirs in the
+     * batch; blocks of any other allocator are freed individually.
+     */
+    default void freeBlocks(List<? extends MemoryBlock> blocks) {
+        blocks.forEach(MemoryBlock::free);
+    }
+
+    /**
+     * Maps the allocator's memory once and keeps it mapped until the allocator is freed. MemoryBlock.map then returns
+     * a slice of the existing mapping instead of calling vkMapMemory. The memory type must be HOST_VISIBLE.
+     */
+    void mapPersistently();
+
     VkDevice getDevice();
 
+    /**
+     * Retrieves the VkDeviceMemory that this allocator suballocates from.
+     *
+     * @return the handle or VK_NULL_HANDLE if every allocation owns its own VkDeviceMemory.
+     */
+    long getHandle();
+
     int getTypeIndex();
 
     boolean isEmpty();
 
+    /**
+     * Retrieves the total number of bytes that are not allocated. This is an O(1) summary.
+     */
+    long getFreeSize();
+
+    /**
+     * Retrieves the size of the largest region a single allocation could use, ignoring alignment.
+     * A request larger than this is guaranteed to fail; a smaller request may still fail on alignment.
+     */
+    long getLargestFreeBlockSize();
+
+    /**
+     * Retrieves the number of live allocations.
+     */
+    int getAllocationCount();
+
+    /**
+     * Reports every free range of the allocator's VkDeviceMemory, in no particular order.
+     */
+    void forEachFreeRange(FreeRangeConsumer consumer);
+
+    /**
+     * Retrieves the alignment that a block of {@code size} bytes is actually placed at, given the alignment it
+     * requested. Allocators that place blocks at multiples of their size report that, so that relocations are planned
+     * where the allocator can put them.
+     */
+    default long getPlacementAlignment(long size, long alignment) {
+        return alignment;
+    }
+
     static long alignUp(long a, long b) {
         return (a + b - 1) / b * b;
     }
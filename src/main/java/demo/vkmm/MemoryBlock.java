@@ -1,5 +1,6 @@
 package demo.vkmm;
 
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.VK10;
 import org.lwjgl.vulkan.VkDevice;
 
@@ -12,10 +13,68 @@ public interface MemoryBlock {
 
     long getSize();
 
-    ByteBuffer map();
+    /**
+     * Retrieves the allocationSize of the VkDeviceMemory that the block belongs to.
+     */
+    long getMemorySize();
+
+    /**
+     * Maps the block and retrieves the address of its first byte. Each call must be paired with a call to unmap.
+     */
+    long mapAddress();
+
+    /**
+     * Maps the block and retrieves a view of all of it. Each call must be paired with a call to unmap.
+     * A ByteBuffer cannot span 2GB or more; larger blocks must be accessed through mapAddress or map(offset, size).
+     */
+    default ByteBuffer map() {
+        final long size = this.getSize();
+
+        if (size > Integer.MAX_VALUE) {
+            throw new UnsupportedOperationException("MemoryBlock is too large to map as a single ByteBuffer: " + size);
+        }
+
+        return this.map(0L, (int) size);
+    }
+
+    /**
+     * Maps the block and retrieves a view of size bytes that starts offset bytes into the block. Each call must be paired
+     * with a call to unmap. Windows can start anywhere in the block, so blocks of any size can be streamed through them.
+     */
+    default ByteBuffer map(final long offset, final int size) {
+        if (offset < 0L || size < 0 || offset + size > this.getSize()) {
+            throw new IndexOutOfBoundsException("Window [" + offset + ", " + (offset + size) + ") is outside of the MemoryBlock!");
+        }
+
+        return MemoryUtil.memByteBuffer(this.mapAddress() + offset, size);
+    }
 
     void unmap();
 
+    /**
+     * Makes host writes to the block visible to the device. Only needed for memory that is not HOST_COHERENT.
+     * Use a MappedMemoryRangeBatch to flush many blocks with one call.
+     */
+    default int flush() {
+        return new MappedMemoryRangeBatch(this.getDevice()).add(this).flush();
+    }
+
+    default int flush(final long offset, final long size) {
+        return new MappedMemoryRangeBatch(this.getDevice()).add(this, offset, size).flush();
+    }
+
+    /**
+     * Makes device writes to the block visible to the host. Only needed for memory that is not HOST_COHERENT.
+     * Use a MappedMemoryRangeBatch to invalidate many blocks with one call.
+     */
+    default int invalidate() {
+        return new MappedMemoryRangeBatch(this.getDevice()).add(this).invalidate();
+    }
+
+    default int invalidate(final long offset, final long size) {
+        return new MappedMemoryRangeBatch(this.getDevice()).add(this, offset, size).invalidate();
+    }
+
     void free();
 
     VkDevice getDevice();
@@ -1,44 +1,136 @@
 package demo.vkmm;
 
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.VK10;
 import org.lwjgl.vulkan.VkDevice;
 import org.lwjgl.vulkan.VkMemoryRequirements;
 import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
 import java.util.stream.Stream;
 
 /**
  * Reference MemoryManager
+ * <p>
+ * Thread-safe. Each heap list is its own lock stripe, so there is one stripe per (tier, memory type, resource type) and
+ * one per small size class. Threads allocating from different stripes never contend. Memory type resolution and the
+ * large tier read immutable state and take no manager lock.
  */
 public final class MemoryManager {
+    /**
+     * One request of a batch allocation. The requirements are copied, so the VkMemoryRequirements may be freed after
+     * the request is constructed.
+     */
+    public static final class AllocationRequest {
+        public final MemoryType memType;
+        public final long size;
+        public final long alignment;
+        public final int memoryTypeBits;
+        public final int required;
+        public final int preferred;
+
+        public AllocationRequest(final MemoryType memType, final VkMemoryRequirements pMemReqs, final int required, final int preferred) {
+            this.memType = memType;
+            this.size = pMemReqs.size();
+            this.alignment = pMemReqs.alignment();
+            this.memoryTypeBits = pMemReqs.memoryTypeBits();
+            this.required = required;
+            this.preferred = preferred;
+        }
+    }
+
+    /**
+     * Receives the relocations made by defragment.
+     */
+    @FunctionalInterface
+    public interface MoveCallback {
+        /**
+         * Called after a movable block was moved. The owner should bind its resource to the block's new memory and
+         * record a copy from the source. The source stays allocated until completeDefragmentation is called.
+         * A block must not be mapped while it can be moved.
+         *
+         * @param block  the movable block, which now refers to its new memory.
+         * @param source the memory the block was moved away from.
+         */
+        void onMove(MemoryBlock block, MemoryBlock source);
+    }
+
     private static final long LARGE_ALLOC_THRESHOLD = Long.getLong("MemoryManager.LARGE_ALLOC_THRESHOLD", 128L * 1024L * 1024L);
     private static final long SMALL_ALLOC_THRESHOLD = Long.getLong("MemoryManager.SMALL_ALLOC_THRESHOLD", 32L * 1024L);
     private static final long STANDARD_BUFFER_HEAP_SIZE = Long.getLong("MemoryManager.STANDARD_BUFFER_HEAP_SIZE", 128L * 1024L * 1024L);
     private static final long STANDARD_IMAGE_HEAP_SIZE = Long.getLong("MemoryManager.STANDARD_IMAGE_HEAP_SIZE", 256L * 1024L * 1024L);
     private static final long MINIMUM_BUFFER_SUBDIV_SIZE = Long.getLong("MemoryManager.MINIMUM_BUFFER_SUBDIV_SIZE", 4L * 1024L);
     private static final long MINIMUM_IMAGE_SUBDIV_SIZE = Long.getLong("MemoryManager.MINIMUM_IMAGE_SUBDIV_SIZE", 4L * 1024L);
-    private static final List<SlabMemoryAllocator.SlabSizeInfo> SMALL_HEAP_SIZES = List.of(
-            new SlabMemoryAllocator.SlabSizeInfo(4 * 1024L, 256),
-            new SlabMemoryAllocator.SlabSizeInfo(8 * 1024L, 128),
-            new SlabMemoryAllocator.SlabSizeInfo(16 * 1024L, 64),
-            new SlabMemoryAllocator.SlabSizeInfo(32 * 1024L, 32));
+    // "buddy" or "tlsf"
+    private static final String STANDARD_HEAP_ALLOCATOR = System.getProperty("MemoryManager.STANDARD_HEAP_ALLOCATOR", "buddy");
+    private static final long SMALL_HEAP_PAGE_SIZE = Long.getLong("MemoryManager.SMALL_HEAP_PAGE_SIZE", 512L * 1024L);
+    private static final long SMALL_MIN_SLAB_SIZE = Long.getLong("MemoryManager.SMALL_MIN_SLAB_SIZE", 4L * 1024L);
+    private static final int SMALL_CLASSES_PER_DOUBLING = Integer.getInteger("MemoryManager.SMALL_CLASSES_PER_DOUBLING", 4);
+    private static final long[] SMALL_SIZE_CLASSES = smallSizeClasses();
+    // slabs cached per thread for each small heap list; 0 disables the thread caches.
+    private static final int THREAD_CACHE_SIZE = Integer.getInteger("MemoryManager.THREAD_CACHE_SIZE", 0);
+    // maps every HOST_VISIBLE heap once for its whole lifetime.
+    private static final boolean PERSISTENT_MAPPING = Boolean.getBoolean("MemoryManager.PERSISTENT_MAPPING");
+    // empty heaps kept per memory type by garbageCollect; 0 releases every empty heap.
+    private static final int RETAINED_HEAP_COUNT = Integer.getInteger("MemoryManager.RETAINED_HEAP_COUNT", 0);
+    private static final long RETAINED_HEAP_SIZE = Long.getLong("MemoryManager.RETAINED_HEAP_SIZE", Long.MAX_VALUE);
+    // milliseconds an empty heap is retained for before it is released.
+    private static final long HEAP_RETENTION_PERIOD = Long.getLong("MemoryManager.HEAP_RETENTION_PERIOD", 10_000L);
+    // percent of a heap list's bytes in use at which a spare heap is created in the background; 0 disables provisioning.
+    private static final int PROVISIONING_WATERMARK = Integer.getInteger("MemoryManager.PROVISIONING_WATERMARK", 0);
 
     private final WeakReference<VkDevice> device;
     private final UniqueMemoryAllocator[] largeBufferHeaps;
     private final UniqueMemoryAllocator[] largeImageHeaps;
-    private final List<SlabMemoryAllocator> smallBufferHeaps = new ArrayList<>();
-    private final List<SlabMemoryAllocator> smallImageHeaps = new ArrayList<>();
-    private final List<BuddyBlockMemoryAllocator> standardBufferHeaps = new ArrayList<>();
-    private final List<BuddyBlockMemoryAllocator> standardImageHeaps = new ArrayList<>();
+    // indexed by (typeIndex * SMALL_SIZE_CLASSES.length + sizeClass)
+    private final List<HeapList<SlabMemoryAllocator>> smallBufferHeaps;
+    private final List<HeapList<SlabMemoryAllocator>> smallImageHeaps;
+    // indexed by typeIndex
+    private final List<HeapList<MemoryAllocator>> standardBufferHeaps;
+    private final List<HeapList<MemoryAllocator>> standardImageHeaps;
     private final VkPhysicalDeviceMemoryProperties pPhysicalDeviceMemoryProperties;
+    private final MemoryTypeResolver memoryTypeResolver;
+    private final long bufferImageGranularity;
+    private final List<SlabMemoryAllocator.ThreadCache> threadCaches = new ArrayList<>();
+    private final ThreadLocal<SlabMemoryAllocator.ThreadCache> threadCache = ThreadLocal.withInitial(this::newThreadCache);
+    private final Set<MovableMemoryBlock> movableBlocks = ConcurrentHashMap.newKeySet();
+    // memory that blocks were moved away from; also serializes defragmentation passes.
+    private final List<MemoryBlock> moveSources = new ArrayList<>();
+    // bit n is set when heaps of memory type n stay mapped for their whole lifetime.
+    private volatile int persistentlyMappedTypes;
+    // guards the retention counters and serializes garbage collection.
+    private final Object retentionLock = new Object();
+    private long heapsRetained;
+    private long heapsReused;
+    private long heapsReleased;
+    // creates spare heaps off the allocating thread; null when provisioning is disabled.
+    private final ExecutorService provisioner;
+    private final AtomicLong provisionedHeaps = new AtomicLong();
+    private final AtomicLong provisioningTime = new AtomicLong();
+    // every heap in a heap list, keyed by its VkDeviceMemory handle.
+    private final Map<Long, MemoryAllocator> heapsByHandle = new ConcurrentHashMap<>();
+    // blocks waiting for their frame or timeline value to complete, keyed by that value.
+    private final TreeMap<Long, List<MemoryBlock>> deferredFrees = new TreeMap<>();
 
     public MemoryManager(final VkDevice device) {
         this.device = new WeakReference<>(device);
@@ -46,121 +138,1397 @@ public final class MemoryManager {
 
         VK10.vkGetPhysicalDeviceMemoryProperties(device.getPhysicalDevice(), pPhysicalDeviceMemoryProperties);
 
+        this.memoryTypeResolver = new MemoryTypeResolver(pPhysicalDeviceMemoryProperties);
+
+        try (var mem = MemoryStack.stackPush()) {
+            final var pPhysicalDeviceProperties = VkPhysicalDeviceProperties.callocStack(mem);
+
+            VK10.vkGetPhysicalDeviceProperties(device.getPhysicalDevice(), pPhysicalDeviceProperties);
+
+            this.bufferImageGranularity = pPhysicalDeviceProperties.limits().bufferImageGranularity();
+        }
+
         this.largeBufferHeaps = new UniqueMemoryAllocator[pPhysicalDeviceMemoryProperties.memoryTypeCount()];
         this.largeImageHeaps = new UniqueMemoryAllocator[pPhysicalDeviceMemoryProperties.memoryTypeCount()];
+
+        // UniqueMemoryAllocators own no VkDeviceMemory until they allocate, so they are created eagerly and never replaced.
+        for (int i = 0; i < pPhysicalDeviceMemoryProperties.memoryTypeCount(); i++) {
+            this.largeBufferHeaps[i] = new UniqueMemoryAllocator(device, i);
+            this.largeImageHeaps[i] = new UniqueMemoryAllocator(device, i);
+        }
+
+        this.smallBufferHeaps = newHeapIndex(pPhysicalDeviceMemoryProperties.memoryTypeCount() * SMALL_SIZE_CLASSES.length, this.heapsByHandle);
+        this.smallImageHeaps = newHeapIndex(pPhysicalDeviceMemoryProperties.memoryTypeCount() * SMALL_SIZE_CLASSES.length, this.heapsByHandle);
+        this.standardBufferHeaps = newHeapIndex(pPhysicalDeviceMemoryProperties.memoryTypeCount(), this.heapsByHandle);
+        this.standardImageHeaps = newHeapIndex(pPhysicalDeviceMemoryProperties.memoryTypeCount(), this.heapsByHandle);
+
+        this.provisioner = 0 == PROVISIONING_WATERMARK ? null : Executors.newSingleThreadExecutor(task -> {
+            final var out = new Thread(task, "MemoryManager provisioner");
+
+            out.setDaemon(true);
+            return out;
+        });
+
+        if (PERSISTENT_MAPPING) {
+            for (int i = 0; i < pPhysicalDeviceMemoryProperties.memoryTypeCount(); i++) {
+                if (0 != (this.memoryTypeResolver.getPropertyFlags(i) & VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT)) {
+                    this.enablePersistentMapping(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the small tier size classes: SMALL_CLASSES_PER_DOUBLING evenly spaced steps between each power of 2,
+     * starting at SMALL_MIN_SLAB_SIZE and ending at SMALL_ALLOC_THRESHOLD.
+     */
+    private static long[] smallSizeClasses() {
+        final var classes = new ArrayList<Long>();
+        long size = SMALL_MIN_SLAB_SIZE;
+
+        while (size < SMALL_ALLOC_THRESHOLD) {
+            classes.add(size);
+            size += Math.max(1L, Long.highestOneBit(size) / SMALL_CLASSES_PER_DOUBLING);
+        }
+
+        classes.add(SMALL_ALLOC_THRESHOLD);
+
+        return classes.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @FunctionalInterface
+    private interface HeapConstructor<MemAllocT extends MemoryAllocator> {
+        MemAllocT newHeap() throws MemoryAllocationException;
+    }
+
+    /**
+     * Heaps of a single memory type, in creation order. Each HeapList is also the lock stripe for its heaps.
+     */
+    private static final class HeapList<MemAllocT extends MemoryAllocator> implements Iterable<MemAllocT> {
+        private final List<MemAllocT> heaps = new ArrayList<>();
+        // shared by every HeapList of the manager.
+        private final Map<Long, MemoryAllocator> heapsByHandle;
+        // index of the heap that satisfied the last request; MIN_TIME allocations start probing there.
+        private int lastUsed;
+        // System.nanoTime() at which garbageCollect first found each retained heap empty.
+        private final Map<MemAllocT, Long> emptySince = new IdentityHashMap<>();
+        // retained heaps allocated from since the last garbageCollect.
+        private int reusedCount;
+        // bytes of every heap in the list; heaps are empty when they are added and removed.
+        private long capacity;
+        // bytes allocated from the heaps; the heaps report their own frees, so it is updated without the list lock.
+        private final AtomicLong usedSize = new AtomicLong();
+        // heap created ahead of demand; the next overflow takes it instead of allocating.
+        private MemAllocT spare;
+        private boolean provisioning;
+        private long provisioningHits;
+        private long provisioningMisses;
+
+        private HeapList(final Map<Long, MemoryAllocator> heapsByHandle) {
+            this.heapsByHandle = heapsByHandle;
+        }
+
+        private MemAllocT get(final int heap) {
+            return this.heaps.get(heap);
+        }
+
+        private int size() {
+            return this.heaps.size();
+        }
+
+        private boolean isEmpty() {
+            return this.heaps.isEmpty();
+        }
+
+        private void add(final MemAllocT heap) {
+            this.heaps.add(heap);
+            this.heapsByHandle.put(heap.getHandle(), heap);
+            this.capacity += heap.getFreeSize();
+        }
+
+        private void remove(final MemoryAllocator heap) {
+            this.heaps.remove(heap);
+            this.heapsByHandle.remove(heap.getHandle());
+            this.capacity -= heap.getFreeSize();
+        }
+
+        private void clear() {
+            this.heaps.forEach(heap -> this.heapsByHandle.remove(heap.getHandle()));
+            this.heaps.clear();
+            this.capacity = 0L;
+        }
+
+        private void onUsageChanged(final long delta) {
+            this.usedSize.addAndGet(delta);
+        }
+
+        @Override
+        public Iterator<MemAllocT> iterator() {
+            return this.heaps.iterator();
+        }
+
+        private Stream<MemAllocT> streamWithSpare() {
+            return Stream.concat(this.heaps.stream(), Stream.ofNullable(this.spare));
+        }
+
+        /**
+         * Checks if the heaps are occupied past PROVISIONING_WATERMARK and no spare heap exists or is being created.
+         */
+        private boolean needsSpare() {
+            if (null != this.spare || this.provisioning || this.isEmpty()) {
+                return false;
+            }
+
+            return this.usedSize.get() * 100L >= this.capacity * PROVISIONING_WATERMARK;
+        }
+
+        /**
+         * Records the heap that satisfied a request; a retained heap stops being retained once it is allocated from.
+         */
+        private void markUsed(final int heap) {
+            this.lastUsed = heap;
+
+            if (!this.emptySince.isEmpty() && null != this.emptySince.remove(this.get(heap))) {
+                this.reusedCount++;
+            }
+        }
+    }
+
+    /**
+     * An empty heap found by garbageCollect.
+     */
+    static final class EmptyHeap {
+        private final HeapList<?> heaps;
+        private final MemoryAllocator heap;
+        private final int typeIndex;
+        private final long size;
+        private final long emptySince;
+
+        private EmptyHeap(final HeapList<?> heaps, final MemoryAllocator heap, final long emptySince) {
+            this(heaps, heap, heap.getTypeIndex(), heap.getFreeSize(), emptySince);
+        }
+
+        EmptyHeap(final HeapList<?> heaps, final MemoryAllocator heap, final int typeIndex, final long size, final long emptySince) {
+            this.heaps = heaps;
+            this.heap = heap;
+            this.typeIndex = typeIndex;
+            this.size = size;
+            this.emptySince = emptySince;
+        }
+    }
+
+    private static <MemAllocT extends MemoryAllocator> List<HeapList<MemAllocT>> newHeapIndex(
+            final int count, final Map<Long, MemoryAllocator> heapsByHandle) {
+
+        final var heaps = new ArrayList<HeapList<MemAllocT>>(count);
+
+        for (int i = 0; i < count; i++) {
+            heaps.add(new HeapList<>(heapsByHandle));
+        }
+
+        return List.copyOf(heaps);
+    }
+
+    /**
+     * Selects the smallest size class that fits the request and whose slabs are all aligned.
+     *
+     * @return the size class index or -1 if no size class can hold the request.
+     */
+    private static int getSmallSizeClass(final VkMemoryRequirements pMemReqs) {
+        for (int i = 0; i < SMALL_SIZE_CLASSES.length; i++) {
+            final long slabSize = SMALL_SIZE_CLASSES[i];
+
+            if (slabSize >= pMemReqs.size() && 0L == slabSize % pMemReqs.alignment()) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static SlabMemoryAllocator newSmallHeap(
+            final VkDevice device, final int typeIndex, final int sizeClass,
+            final HeapList<SlabMemoryAllocator> heaps) throws MemoryAllocationException {
+
+        final long slabSize = SMALL_SIZE_CLASSES[sizeClass];
+        final int count = (int) Math.max(1L, SMALL_HEAP_PAGE_SIZE / slabSize);
+        final var out = new SlabMemoryAllocator(device, typeIndex, new SlabMemoryAllocator.SlabSizeInfo(slabSize, count));
+
+        out.setUsageListener(heaps::onUsageChanged);
+        return out;
+    }
+
+    private static MemoryAllocator newStandardHeap(
+            final VkDevice device, final int typeIndex, final long minSize, final long heapSize,
+            final HeapList<MemoryAllocator> heaps) throws MemoryAllocationException {
+
+        switch (STANDARD_HEAP_ALLOCATOR) {
+            case "buddy": {
+                final var out = new BuddyBlockMemoryAllocator(device, typeIndex, minSize, heapSize);
+
+                out.setUsageListener(heaps::onUsageChanged);
+                return out;
+            }
+            case "tlsf": {
+                final var out = new TLSFMemoryAllocator(device, typeIndex, heapSize);
+
+                out.setUsageListener(heaps::onUsageChanged);
+                return out;
+            }
+            default:
+                throw new UnsupportedOperationException("Unsupported standard heap allocator: " + STANDARD_HEAP_ALLOCATOR);
+        }
     }
 
     public VkDevice getDevice() {
         return Objects.requireNonNull(this.device.get(), "Device was lost!");
     }
 
-    public void garbageCollect() {
-        Stream.of(this.smallBufferHeaps, this.smallImageHeaps, this.standardBufferHeaps, this.standardImageHeaps)
-                .forEach(heap -> {
-                    final var garbage = heap.stream()
-                            .filter(MemoryAllocator::isEmpty)
-                            .peek(MemoryAllocator::free)
-                            .collect(Collectors.toList());
+    /**
+     * Keeps every heap of a HOST_VISIBLE memory type mapped for its whole lifetime, including heaps that already exist.
+     * Mapping a block of that type then returns a slice of the heap's mapping without calling into the driver.
+     */
+    public void enablePersistentMapping(final int typeIndex) {
+        if (0 == (this.memoryTypeResolver.getPropertyFlags(typeIndex) & VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT)) {
+            throw new IllegalArgumentException("MemoryType " + typeIndex + " is not HOST_VISIBLE!");
+        }
 
-                    heap.removeAll(garbage);
+        synchronized (this) {
+            this.persistentlyMappedTypes |= 1 << typeIndex;
+        }
+
+        this.largeBufferHeaps[typeIndex].mapPersistently();
+        this.largeImageHeaps[typeIndex].mapPersistently();
+
+        // heaps created from here on see the flag; mapPersistently ignores heaps that were already mapped.
+        this.heapLists()
+                .forEach(heaps -> {
+                    synchronized (heaps) {
+                        heaps.streamWithSpare()
+                                .filter(heap -> typeIndex == heap.getTypeIndex())
+                                .forEach(MemoryAllocator::mapPersistently);
+                    }
                 });
     }
 
+    private <MemAllocT extends MemoryAllocator> MemAllocT applyMapping(final MemAllocT heap) {
+        if (0 != (this.persistentlyMappedTypes & (1 << heap.getTypeIndex()))) {
+            heap.mapPersistently();
+        }
+
+        return heap;
+    }
+
+    private SlabMemoryAllocator.ThreadCache newThreadCache() {
+        final var out = new SlabMemoryAllocator.ThreadCache(this.smallBufferHeaps.size() + this.smallImageHeaps.size(), THREAD_CACHE_SIZE);
+
+        synchronized (this.threadCaches) {
+            this.threadCaches.add(out);
+        }
+
+        return out;
+    }
+
+    /**
+     * Returns the calling thread's cached small blocks to their heaps. Caches of threads that have died are flushed by
+     * garbageCollect.
+     */
+    public void flushThreadCache() {
+        if (0 != THREAD_CACHE_SIZE) {
+            this.threadCache.get().flush();
+        }
+    }
+
+    /**
+     * Has every live thread return its cached small blocks at its next small allocation or free, so that a later
+     * garbageCollect can release the heaps they kept.
+     */
+    private void requestThreadCacheFlush() {
+        synchronized (this.threadCaches) {
+            this.threadCaches.forEach(SlabMemoryAllocator.ThreadCache::requestFlush);
+        }
+    }
+
+    public void garbageCollect() {
+        this.garbageCollect(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Flushes the caches of threads that have died and releases empty heaps. Caches of live threads are left alone,
+     * since a call every frame would otherwise leave them nothing to hand out; they are flushed by their owners once
+     * vkAllocateMemory fails. Up to RETAINED_HEAP_COUNT empty heaps and RETAINED_HEAP_SIZE bytes per memory type are
+     * retained for HEAP_RETENTION_PERIOD, so that a heap needed again shortly after is reused instead of reallocated.
+     * Heaps beyond those limits are released, oldest first.
+     *
+     * @param maxReleases the most heaps released by this call; the rest are released by later calls.
+     */
+    public void garbageCollect(final int maxReleases) {
+        synchronized (this.threadCaches) {
+            this.threadCaches.removeIf(cache -> {
+                if (cache.isOwnerAlive()) {
+                    return false;
+                }
+
+                cache.flush();
+                return true;
+            });
+        }
+
+        synchronized (this.retentionLock) {
+            final long now = System.nanoTime();
+            final var emptyHeaps = new ArrayList<EmptyHeap>();
+
+            this.heapLists()
+                    .forEach(heaps -> this.findEmptyHeaps(heaps, now, emptyHeaps));
+
+            final var retained = new ArrayList<EmptyHeap>();
+            final var garbage = new ArrayList<EmptyHeap>();
+
+            selectRetainedHeaps(
+                    emptyHeaps, now, this.memoryTypeResolver.getMemoryTypeCount(),
+                    RETAINED_HEAP_COUNT, RETAINED_HEAP_SIZE, HEAP_RETENTION_PERIOD * 1_000_000L, retained, garbage);
+
+            // every heap first found empty by this call was stamped with now.
+            this.heapsRetained += retained.stream()
+                    .filter(heap -> now == heap.emptySince)
+                    .count();
+
+            for (int i = garbage.size() - 1, released = 0; i >= 0 && released < maxReleases; i--) {
+                final var emptyHeap = garbage.get(i);
+
+                synchronized (emptyHeap.heaps) {
+                    // an allocation may have claimed the heap since it was found empty.
+                    if (emptyHeap.heap.isEmpty() && null != emptyHeap.heaps.emptySince.remove(emptyHeap.heap)) {
+                        emptyHeap.heaps.remove(emptyHeap.heap);
+                        emptyHeap.heap.free();
+                        this.heapsReleased++;
+                        released++;
+                    }
+                }
+            }
+
+            // a retained empty heap covers the next overflow, so the spare is no longer needed.
+            for (var emptyHeap : retained) {
+                synchronized (emptyHeap.heaps) {
+                    if (null != emptyHeap.heaps.spare && emptyHeap.heaps.emptySince.containsKey(emptyHeap.heap)) {
+                        emptyHeap.heaps.spare.free();
+                        emptyHeap.heaps.spare = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits empty heaps into the ones to retain and the ones to release, oldest last. Heaps are retained newest first;
+     * among heaps that became empty at the same time, the largest goes first since it is the costliest to allocate
+     * again. Otherwise a budget of one would keep a small slab page and release a standard heap.
+     *
+     * @param maxCount the most heaps retained per memory type.
+     * @param maxSize the most bytes retained per memory type.
+     * @param period the nanoseconds a heap is retained for after it became empty.
+     */
+    static void selectRetainedHeaps(
+            final List<EmptyHeap> emptyHeaps, final long now, final int memoryTypeCount,
+            final int maxCount, final long maxSize, final long period,
+            final List<EmptyHeap> retained, final List<EmptyHeap> garbage) {
+
+        emptyHeaps.sort(Comparator.<EmptyHeap> comparingLong(heap -> heap.emptySince)
+                .thenComparingLong(heap -> heap.size)
+                .reversed());
+
+        final var retainedCounts = new int[memoryTypeCount];
+        final var retainedSizes = new long[memoryTypeCount];
+
+        for (var emptyHeap : emptyHeaps) {
+            final int typeIndex = emptyHeap.typeIndex;
+            final boolean retain = retainedCounts[typeIndex] < maxCount
+                    && retainedSizes[typeIndex] + emptyHeap.size <= maxSize
+                    && now - emptyHeap.emptySince < period;
+
+            if (retain) {
+                retainedCounts[typeIndex]++;
+                retainedSizes[typeIndex] += emptyHeap.size;
+                retained.add(emptyHeap);
+            } else {
+                garbage.add(emptyHeap);
+            }
+        }
+    }
+
+    private <MemAllocT extends MemoryAllocator> void findEmptyHeaps(final HeapList<MemAllocT> heaps, final long now, final List<EmptyHeap> out) {
+        synchronized (heaps) {
+            this.heapsReused += heaps.reusedCount;
+            heaps.reusedCount = 0;
+
+            for (var heap : heaps) {
+                if (heap.isEmpty()) {
+                    final var emptySince = heaps.emptySince.putIfAbsent(heap, now);
+
+                    out.add(new EmptyHeap(heaps, heap, null == emptySince ? now : emptySince));
+                } else if (null != heaps.emptySince.remove(heap)) {
+                    this.heapsReused++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of heaps that garbageCollect found empty and kept instead of releasing.
+     */
+    public long getHeapsRetained() {
+        synchronized (this.retentionLock) {
+            return this.heapsRetained;
+        }
+    }
+
+    /**
+     * Retrieves the number of retained heaps that were allocated from again before garbageCollect released them. Reuse
+     * is tallied by garbageCollect, so the count is as of its last call.
+     */
+    public long getHeapsReused() {
+        synchronized (this.retentionLock) {
+            return this.heapsReused;
+        }
+    }
+
+    /**
+     * Retrieves the number of heaps released by garbageCollect.
+     */
+    public long getHeapsReleased() {
+        synchronized (this.retentionLock) {
+            return this.heapsReleased;
+        }
+    }
+
+    /**
+     * Queues a block to be freed once releaseDeferredFrees is called with a value of at least {@code value}. The block
+     * must not be used after the GPU work tagged with the value.
+     *
+     * @param value the frame index or timeline semaphore value that signals when the GPU is done with the block.
+     */
+    public void deferFree(final MemoryBlock block, final long value) {
+        synchronized (this.deferredFrees) {
+            this.deferredFrees.computeIfAbsent(value, key -> new ArrayList<>()).add(block);
+        }
+    }
+
+    /**
+     * Frees every block queued with a value less than or equal to {@code value}. The blocks are grouped by the heap that
+     * owns their memory, and each heap frees its group with one acquisition of its lock.
+     */
+    public void releaseDeferredFrees(final long value) {
+        final var blocks = new ArrayList<MemoryBlock>();
+
+        synchronized (this.deferredFrees) {
+            final var completed = this.deferredFrees.headMap(value, true);
+
+            completed.values().forEach(blocks::addAll);
+            completed.clear();
+        }
+
+        if (blocks.isEmpty()) {
+            return;
+        }
+
+        final var batches = new IdentityHashMap<MemoryAllocator, List<MemoryBlock>>();
+        final var rest = new ArrayList<MemoryBlock>();
+
+        // a heap with live blocks is never released, so the heap that owns each block's handle cannot change.
+        for (var block : blocks) {
+            final var heap = this.heapsByHandle.get(block.getHandle());
+
+            if (null == heap) {
+                // large allocations and anything else that does not belong to a heap.
+                rest.add(block);
+            } else {
+                batches.computeIfAbsent(heap, key -> new ArrayList<>()).add(block);
+            }
+        }
+
+        batches.forEach(MemoryAllocator::freeBlocks);
+        rest.forEach(MemoryBlock::free);
+    }
+
     public void free() {
-        Stream.of(this.largeBufferHeaps, this.largeImageHeaps)
-                .flatMap(Arrays::stream)
-                .filter(Objects::nonNull)
-                .forEach(MemoryAllocator::free);
+        synchronized (this.threadCaches) {
+            this.threadCaches.clear();
+        }
 
-        Stream.of(this.smallBufferHeaps, this.smallImageHeaps, this.standardBufferHeaps, this.standardImageHeaps)
-                .flatMap(List::stream)
-                .forEach(MemoryAllocator::free);
+        synchronized (this.deferredFrees) {
+            this.deferredFrees.clear();
+        }
 
-        for (int i = 0; i < this.largeBufferHeaps.length; i++) {
-            this.largeBufferHeaps[i] = null;
+        synchronized (this.moveSources) {
+            this.moveSources.clear();
         }
 
-        for (int i = 0; i < this.largeImageHeaps.length; i++) {
-            this.largeImageHeaps[i] = null;
+        this.movableBlocks.clear();
+
+        if (null != this.provisioner) {
+            this.provisioner.shutdown();
+
+            try {
+                // a spare still being created must be in its list before the lists are freed.
+                this.provisioner.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
         }
 
-        Stream.of(this.smallBufferHeaps, this.smallImageHeaps, this.standardBufferHeaps, this.standardImageHeaps)
-                .forEach(List::clear);
+        Stream.of(this.largeBufferHeaps, this.largeImageHeaps)
+                .flatMap(Arrays::stream)
+                .forEach(MemoryAllocator::free);
+
+        this.heapLists()
+                .forEach(heap -> {
+                    synchronized (heap) {
+                        heap.streamWithSpare().forEach(MemoryAllocator::free);
+                        heap.clear();
+                        heap.spare = null;
+                    }
+                });
     }
 
+    /**
+     * Allocates from the heaps of a single memory type. MIN_TIME starts probing at the heap that satisfied the last
+     * request; the other strategies probe the oldest heaps first so that allocations pack into as few heaps as possible.
+     * MIN_MEMORY first tries the heap whose largest free block fits the request most tightly. Heaps whose largest free
+     * block is too small are skipped, and a new heap is created directly when no heap can fit the request.
+     */
     private static <MemAllocT extends MemoryAllocator> MemoryBlock allocate(
-            final MemoryType memType, final VkMemoryRequirements pMemReqs,
-            final int index, final List<MemAllocT> allocator, final Supplier<MemAllocT> constructor) {
+            final MemoryType memType, final VkMemoryRequirements pMemReqs, final AllocationStrategy strategy,
+            final HeapList<MemAllocT> heaps, final HeapConstructor<MemAllocT> constructor) throws MemoryAllocationException {
 
-        final var selectedHeaps = allocator.stream()
-                .filter(testHeap -> testHeap.getTypeIndex() == index)
-                .collect(Collectors.toList());
+        synchronized (heaps) {
+            final int count = heaps.size();
+            final long requiredSize = pMemReqs.size();
 
-        for (var selectedHeap : selectedHeaps) {
-            try {
-                return selectedHeap.malloc(memType, pMemReqs);
-            } catch (OutOfMemoryError err) {
-                // heap is too full; try next
+            if (AllocationStrategy.MIN_MEMORY == strategy) {
+                // best fit across heaps: try the heap whose largest free block is the tightest fit first.
+                int bestHeap = -1;
+                long bestFit = Long.MAX_VALUE;
+
+                for (int heap = 0; heap < count; heap++) {
+                    final long largest = heaps.get(heap).getLargestFreeBlockSize();
+
+                    if (largest >= requiredSize && largest < bestFit) {
+                        bestHeap = heap;
+                        bestFit = largest;
+                    }
+                }
+
+                if (-1 == bestHeap) {
+                    return newHeap(memType, pMemReqs, strategy, heaps, constructor);
+                }
+
+                final var out = heaps.get(bestHeap).tryMalloc(memType, pMemReqs, strategy);
+
+                if (null != out) {
+                    heaps.markUsed(bestHeap);
+                    return out;
+                }
             }
+
+            final int start = AllocationStrategy.MIN_TIME == strategy && heaps.lastUsed < count ? heaps.lastUsed : 0;
+
+            for (int i = 0; i < count; i++) {
+                final int heap = (start + i) % count;
+                final var allocator = heaps.get(heap);
+
+                // the summary rules out heaps that cannot fit the request without probing them.
+                if (allocator.getLargestFreeBlockSize() < requiredSize) {
+                    continue;
+                }
+
+                final var out = allocator.tryMalloc(memType, pMemReqs, strategy);
+
+                if (null != out) {
+                    heaps.markUsed(heap);
+                    return out;
+                }
+            }
+
+            return newHeap(memType, pMemReqs, strategy, heaps, constructor);
         }
+    }
+
+    /**
+     * Appends a new heap and allocates from it. The caller must hold the heap list's lock.
+     */
+    private static <MemAllocT extends MemoryAllocator> MemoryBlock newHeap(
+            final MemoryType memType, final VkMemoryRequirements pMemReqs, final AllocationStrategy strategy,
+            final HeapList<MemAllocT> heaps, final HeapConstructor<MemAllocT> constructor) throws MemoryAllocationException {
+
+        final MemAllocT newHeap;
+
+        if (null != heaps.spare) {
+            newHeap = heaps.spare;
+            heaps.spare = null;
+            heaps.provisioningHits++;
+        } else {
+            newHeap = constructor.newHeap();
 
-        final var newHeap = constructor.get();
+            if (0 != PROVISIONING_WATERMARK) {
+                heaps.provisioningMisses++;
+            }
+        }
 
-        allocator.add(newHeap);
+        heaps.add(newHeap);
+        heaps.lastUsed = heaps.size() - 1;
 
         // if this throws OOM; then the wrong heap was selected.
-        return newHeap.malloc(memType, pMemReqs);
+        return newHeap.malloc(memType, pMemReqs, strategy);
     }
 
-    private int getMemoryTypeIndex(final int typeBits, final int requirementsMask) {
-        for (int i = 0; i < this.pPhysicalDeviceMemoryProperties.memoryTypeCount(); i++) {
-            if (0 != (typeBits & (1 << i))) {
-                if (requirementsMask == (this.pPhysicalDeviceMemoryProperties.memoryTypes(i).propertyFlags() & requirementsMask)) {
-                    return i;
+    /**
+     * Allocates a small block from the calling thread's cache, refilling half of the magazine from the shared heaps when
+     * it is empty.
+     */
+    private MemoryBlock allocateCached(
+            final MemoryType memType, final VkMemoryRequirements pMemReqs,
+            final HeapList<SlabMemoryAllocator> heaps, final int magazine, final HeapConstructor<SlabMemoryAllocator> constructor)
+            throws MemoryAllocationException {
+
+        final var cache = this.threadCache.get();
+        var out = cache.pop(magazine);
+
+        // a flush requested between the refill and the pop empties the magazine again, so refill until a slab is taken.
+        while (null == out) {
+            synchronized (heaps) {
+                for (int i = 0; i < (THREAD_CACHE_SIZE + 1) / 2; i++) {
+                    cache.fill(magazine, allocate(memType, pMemReqs, AllocationStrategy.MIN_TIME, heaps, constructor));
                 }
             }
+
+            this.provision(heaps, constructor);
+            out = cache.pop(magazine);
         }
 
-        throw new UnsupportedOperationException("No MemoryType exists with the required features!");
+        return out;
     }
 
-    public MemoryBlock allocateImageMemory(final VkMemoryRequirements pMemReqs, final int properties) {
-        final var index = this.getMemoryTypeIndex(pMemReqs.memoryTypeBits(), properties);
+    private MemoryBlock allocate(
+            final MemoryType memType, final VkMemoryRequirements pMemReqs,
+            final int required, final int preferred, final AllocationStrategy strategy, final boolean cacheable) {
+
+        final var candidates = this.memoryTypeResolver.getMemoryTypeIndices(pMemReqs.memoryTypeBits(), required, preferred);
+
+        if (0 == candidates.length) {
+            throw new UnsupportedOperationException("No MemoryType exists with the required features!");
+        }
+
+        for (int i = 0; ; i++) {
+            try {
+                return this.allocate(memType, pMemReqs, candidates[i], strategy, cacheable);
+            } catch (MemoryAllocationException ex) {
+                // slabs cached by live threads may be all that keeps some heaps from being released.
+                this.requestThreadCacheFlush();
+
+                if (candidates.length - 1 == i) {
+                    final var err = new OutOfMemoryError(ex.getMessage());
+
+                    err.initCause(ex);
+                    throw err;
+                }
+
+                // the memory type's heap is exhausted; fall back to the next best memory type.
+            }
+        }
+    }
+
+    private MemoryBlock allocate(
+            final MemoryType memType, final VkMemoryRequirements pMemReqs, final int index,
+            final AllocationStrategy strategy, final boolean cacheable) throws MemoryAllocationException {
+
         final var size = pMemReqs.size();
         final var device = this.getDevice();
+        final int sizeClass = size <= SMALL_ALLOC_THRESHOLD ? getSmallSizeClass(pMemReqs) : -1;
 
         if (size > LARGE_ALLOC_THRESHOLD) {
-            if (this.largeImageHeaps[index] == null) {
-                this.largeImageHeaps[index] = new UniqueMemoryAllocator(device, index);
+            final var largeHeaps = MemoryType.IMAGE == memType ? this.largeImageHeaps : this.largeBufferHeaps;
+
+            return largeHeaps[index].allocate(pMemReqs);
+        } else if (sizeClass >= 0) {
+            final var smallHeaps = MemoryType.IMAGE == memType ? this.smallImageHeaps : this.smallBufferHeaps;
+            final int smallIndex = index * SMALL_SIZE_CLASSES.length + sizeClass;
+            final var heaps = smallHeaps.get(smallIndex);
+            final HeapConstructor<SlabMemoryAllocator> constructor = () -> this.applyMapping(newSmallHeap(device, index, sizeClass, heaps));
+
+            if (0 == THREAD_CACHE_SIZE || !cacheable) {
+                final var out = allocate(memType, pMemReqs, strategy, heaps, constructor);
+
+                this.provision(heaps, constructor);
+                return out;
             }
 
-            final var out = this.largeImageHeaps[index].malloc(MemoryType.IMAGE, pMemReqs);
+            return this.allocateCached(memType, pMemReqs, heaps,
+                    MemoryType.IMAGE == memType ? this.smallBufferHeaps.size() + smallIndex : smallIndex, constructor);
+        } else {
+            final var heaps = (MemoryType.IMAGE == memType ? this.standardImageHeaps : this.standardBufferHeaps).get(index);
+            final HeapConstructor<MemoryAllocator> constructor = MemoryType.IMAGE == memType
+                    ? () -> this.applyMapping(newStandardHeap(device, index, MINIMUM_IMAGE_SUBDIV_SIZE, STANDARD_IMAGE_HEAP_SIZE, heaps))
+                    : () -> this.applyMapping(newStandardHeap(device, index, MINIMUM_BUFFER_SUBDIV_SIZE, STANDARD_BUFFER_HEAP_SIZE, heaps));
+
+            final var out = allocate(memType, pMemReqs, strategy, heaps, constructor);
 
+            this.provision(heaps, constructor);
             return out;
-        } else if (size <= SMALL_ALLOC_THRESHOLD) {
-            return allocate(MemoryType.IMAGE, pMemReqs, index, this.smallImageHeaps, () -> new SlabMemoryAllocator(device, index, SMALL_HEAP_SIZES));
-        } else {
-            return allocate(MemoryType.IMAGE, pMemReqs, index, this.standardImageHeaps, () -> new BuddyBlockMemoryAllocator(device, index, MINIMUM_IMAGE_SUBDIV_SIZE, STANDARD_IMAGE_HEAP_SIZE));
         }
     }
 
+    /**
+     * Creates a spare heap on the provisioner thread once the heaps are occupied past PROVISIONING_WATERMARK, so the
+     * next overflow takes the spare instead of calling vkAllocateMemory on the allocating thread.
+     */
+    private <MemAllocT extends MemoryAllocator> void provision(final HeapList<MemAllocT> heaps, final HeapConstructor<MemAllocT> constructor) {
+        if (null == this.provisioner) {
+            return;
+        }
+
+        synchronized (heaps) {
+            if (!heaps.needsSpare()) {
+                return;
+            }
+
+            heaps.provisioning = true;
+        }
+
+        this.provisioner.execute(() -> {
+            final long start = System.nanoTime();
+            MemAllocT spare = null;
+
+            try {
+                spare = constructor.newHeap();
+            } catch (MemoryAllocationException ex) {
+                // the memory type's heap is exhausted; the overflow allocates on demand and fails there instead.
+            }
+
+            this.provisioningTime.addAndGet(System.nanoTime() - start);
+
+            synchronized (heaps) {
+                heaps.provisioning = false;
+
+                if (null != spare) {
+                    // persistent mapping may have been enabled while the spare was created.
+                    heaps.spare = this.applyMapping(spare);
+                    this.provisionedHeaps.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Retrieves the number of spare heaps created by the provisioner.
+     */
+    public long getProvisionedHeapCount() {
+        return this.provisionedHeaps.get();
+    }
+
+    /**
+     * Retrieves the mean time taken to create a spare heap in nanoseconds; 0 if none were created.
+     */
+    public long getProvisioningLatency() {
+        final long count = this.provisionedHeaps.get();
+
+        return 0L == count ? 0L : this.provisioningTime.get() / count;
+    }
+
+    /**
+     * Retrieves the number of new heaps that were taken from a spare instead of created on the allocating thread.
+     */
+    public long getProvisioningHits() {
+        return this.sumHeapLists(heaps -> heaps.provisioningHits);
+    }
+
+    /**
+     * Retrieves the number of new heaps that had to be created on the allocating thread while provisioning was enabled.
+     */
+    public long getProvisioningMisses() {
+        return this.sumHeapLists(heaps -> heaps.provisioningMisses);
+    }
+
+    private Stream<HeapList<?>> heapLists() {
+        return Stream.<List<? extends HeapList<?>>> of(this.smallBufferHeaps, this.smallImageHeaps, this.standardBufferHeaps, this.standardImageHeaps)
+                .flatMap(List::stream);
+    }
+
+    private long sumHeapLists(final ToLongFunction<HeapList<?>> counter) {
+        return this.heapLists()
+                .mapToLong(heaps -> {
+                    synchronized (heaps) {
+                        return counter.applyAsLong(heaps);
+                    }
+                })
+                .sum();
+    }
+
+    public MemoryBlock allocateImageMemory(final VkMemoryRequirements pMemReqs, final int properties) {
+        return this.allocateImageMemory(pMemReqs, properties, 0);
+    }
+
+    public MemoryBlock allocateImageMemory(final VkMemoryRequirements pMemReqs, final int required, final int preferred) {
+        return this.allocateImageMemory(pMemReqs, required, preferred, AllocationStrategy.MIN_TIME);
+    }
+
+    /**
+     * Allocates image memory from the memory type that has all of the required flags and the most preferred flags.
+     */
+    public MemoryBlock allocateImageMemory(
+            final VkMemoryRequirements pMemReqs, final int required, final int preferred, final AllocationStrategy strategy) {
+
+        return this.allocate(MemoryType.IMAGE, pMemReqs, required, preferred, strategy, true);
+    }
+
+    /**
+     * Allocates image memory that defragment may move. onMove is called every time the block is moved.
+     */
+    public MemoryBlock allocateImageMemory(
+            final VkMemoryRequirements pMemReqs, final int required, final int preferred, final AllocationStrategy strategy,
+            final MoveCallback onMove) {
+
+        return this.allocateMovable(MemoryType.IMAGE, pMemReqs, required, preferred, strategy, onMove);
+    }
+
     public MemoryBlock allocateBufferMemory(final VkMemoryRequirements pMemReqs, final int properties) {
-        final var index = this.getMemoryTypeIndex(pMemReqs.memoryTypeBits(), properties);
-        final var size = pMemReqs.size();
-        final var device = this.getDevice();
+        return this.allocateBufferMemory(pMemReqs, properties, 0);
+    }
 
-        if (size > LARGE_ALLOC_THRESHOLD) {
-            if (this.largeBufferHeaps[index] == null) {
-                this.largeBufferHeaps[index] = new UniqueMemoryAllocator(device, index);
+    public MemoryBlock allocateBufferMemory(final VkMemoryRequirements pMemReqs, final int required, final int preferred) {
+        return this.allocateBufferMemory(pMemReqs, required, preferred, AllocationStrategy.MIN_TIME);
+    }
+
+    /**
+     * Allocates buffer memory from the memory type that has all of the required flags and the most preferred flags.
+     */
+    public MemoryBlock allocateBufferMemory(
+            final VkMemoryRequirements pMemReqs, final int required, final int preferred, final AllocationStrategy strategy) {
+
+        return this.allocate(MemoryType.BUFFER, pMemReqs, required, preferred, strategy, true);
+    }
+
+    /**
+     * Allocates buffer memory that defragment may move. onMove is called every time the block is moved.
+     */
+    public MemoryBlock allocateBufferMemory(
+            final VkMemoryRequirements pMemReqs, final int required, final int preferred, final AllocationStrategy strategy,
+            final MoveCallback onMove) {
+
+        return this.allocateMovable(MemoryType.BUFFER, pMemReqs, required, preferred, strategy, onMove);
+    }
+
+    private MemoryBlock allocateMovable(
+            final MemoryType memType, final VkMemoryRequirements pMemReqs,
+            final int required, final int preferred, final AllocationStrategy strategy, final MoveCallback onMove) {
+
+        // a cached slab may only be freed by its owning thread, but defragment frees sources on the calling thread.
+        final var block = this.allocate(memType, pMemReqs, required, preferred, strategy, false);
+        final var out = new MovableMemoryBlock(memType, pMemReqs.size(), pMemReqs.alignment(), onMove, block);
+
+        this.movableBlocks.add(out);
+
+        return out;
+    }
+
+    /**
+     * Allocates memory for many requests at once. Requests are grouped by the memory type they resolve to. Each group is
+     * sorted by alignment and size and packed back to back into as few heap allocations as possible, with images placed
+     * before buffers and bufferImageGranularity padding between them. Requests above the large allocation threshold
+     * are allocated on their own.
+     * <p>
+     * The blocks of a packed allocation share its memory. The memory is released once every one of them is freed, so
+     * batches suit resources that live and die together, such as the contents of a scene.
+     *
+     * @return one MemoryBlock per request, in request order.
+     */
+    public List<MemoryBlock> allocateMemory(final List<AllocationRequest> requests) {
+        final var out = new MemoryBlock[requests.size()];
+        final var groups = new HashMap<Integer, List<Integer>>();
+
+        try (var mem = MemoryStack.stackPush()) {
+            final var pMemReqs = VkMemoryRequirements.callocStack(mem);
+
+            try {
+                for (int i = 0; i < out.length; i++) {
+                    final var request = requests.get(i);
+                    final var candidates = this.memoryTypeResolver.getMemoryTypeIndices(request.memoryTypeBits, request.required, request.preferred);
+
+                    if (0 == candidates.length) {
+                        throw new UnsupportedOperationException("No MemoryType exists with the required features!");
+                    }
+
+                    if (request.size > LARGE_ALLOC_THRESHOLD) {
+                        out[i] = this.allocate(request, pMemReqs);
+                    } else {
+                        groups.computeIfAbsent(candidates[0], typeIndex -> new ArrayList<>()).add(i);
+                    }
+                }
+
+                for (var group : groups.entrySet()) {
+                    this.allocatePacked(requests, group.getKey(), group.getValue(), pMemReqs, out);
+                }
+            } catch (OutOfMemoryError | RuntimeException err) {
+                Arrays.stream(out)
+                        .filter(Objects::nonNull)
+                        .forEach(MemoryBlock::free);
+
+                throw err;
+            }
+        }
+
+        return List.of(out);
+    }
+
+    private MemoryBlock allocate(final AllocationRequest request, final VkMemoryRequirements pMemReqs) {
+        setMemoryRequirements(pMemReqs, request.size, request.alignment, request.memoryTypeBits);
+
+        return this.allocate(request.memType, pMemReqs, request.required, request.preferred, AllocationStrategy.MIN_TIME, true);
+    }
+
+    /**
+     * Packs requests that resolve to the same memory type into chunks no larger than a standard heap. A buddy heap
+     * reserves the next power of 2 for each chunk, so a chunk only grows past a power of 2 when the rest of the requests
+     * are enough to fill the doubled block; otherwise the tail of a batch could cost up to twice what it holds.
+     */
+    private void allocatePacked(
+            final List<AllocationRequest> requests, final int typeIndex, final List<Integer> members,
+            final VkMemoryRequirements pMemReqs, final MemoryBlock[] out) {
+
+        final long chunkLimit = Math.min(LARGE_ALLOC_THRESHOLD, Math.min(STANDARD_BUFFER_HEAP_SIZE, STANDARD_IMAGE_HEAP_SIZE));
+        final boolean buddy = "buddy".equals(STANDARD_HEAP_ALLOCATOR);
+        // images first so that a chunk switches between images and buffers at most once.
+        final Comparator<Integer> order = Comparator
+                .<Integer, Boolean> comparing(i -> MemoryType.IMAGE != requests.get(i).memType)
+                .thenComparing(Comparator.<Integer> comparingLong(i -> requests.get(i).alignment).reversed())
+                .thenComparing(Comparator.<Integer> comparingLong(i -> requests.get(i).size).reversed());
+
+        members.sort(order);
+
+        long remainingSize = 0L;
+
+        for (int member : members) {
+            remainingSize += requests.get(member).size;
+        }
+
+        final var offsets = new long[members.size()];
+        int chunkStart = 0;
+        long chunkSize = 0L;
+
+        for (int i = 0; i < members.size(); i++) {
+            final var request = requests.get(members.get(i));
+            long offset = MemoryAllocator.alignUp(chunkSize, request.alignment);
+
+            if (i > chunkStart && requests.get(members.get(i - 1)).memType.conflicts(request.memType)) {
+                offset = MemoryAllocator.alignUp(offset, this.bufferImageGranularity);
+            }
+
+            final long end = offset + request.size;
+            // chunks within the small tier are rounded to the much finer slab size classes instead.
+            final boolean crossesBlock = buddy && end > SMALL_ALLOC_THRESHOLD && getBuddyBlockSize(end) > getBuddyBlockSize(chunkSize)
+                    && offset + remainingSize < getBuddyBlockSize(end);
+
+            if (i > chunkStart && (end > chunkLimit || crossesBlock)) {
+                this.allocateChunk(requests, typeIndex, members.subList(chunkStart, i), offsets, chunkStart, chunkSize, pMemReqs, out);
+                chunkStart = i;
+                offset = 0L;
+            }
+
+            offsets[i] = offset;
+            chunkSize = offset + request.size;
+            remainingSize -= request.size;
+        }
+
+        this.allocateChunk(requests, typeIndex, members.subList(chunkStart, members.size()), offsets, chunkStart, chunkSize, pMemReqs, out);
+    }
+
+    /**
+     * Retrieves the size of the block a buddy heap would reserve for an allocation.
+     */
+    private static long getBuddyBlockSize(final long size) {
+        return Math.max(Math.min(MINIMUM_BUFFER_SUBDIV_SIZE, MINIMUM_IMAGE_SUBDIV_SIZE), Long.highestOneBit(size - 1L) << 1);
+    }
+
+    /**
+     * Allocates one chunk of packed requests.
+     *
+     * @param firstOffset the index into offsets of the chunk's first request.
+     */
+    private void allocateChunk(
+            final List<AllocationRequest> requests, final int typeIndex, final List<Integer> chunk,
+            final long[] offsets, final int firstOffset, final long chunkSize,
+            final VkMemoryRequirements pMemReqs, final MemoryBlock[] out) {
+
+        if (1 == chunk.size()) {
+            out[chunk.get(0)] = this.allocate(requests.get(chunk.get(0)), pMemReqs);
+            return;
+        }
+
+        final var memType = requests.get(chunk.get(0)).memType;
+        long alignment = 1L;
+        long size = chunkSize;
+        boolean mixed = false;
+
+        for (int i : chunk) {
+            alignment = Math.max(alignment, requests.get(i).alignment);
+            mixed |= memType != requests.get(i).memType;
+        }
+
+        // a mixed chunk covers whole granularity pages, so none of its buffers shares a page with a neighbouring image.
+        if (mixed) {
+            alignment = Math.max(alignment, this.bufferImageGranularity);
+            size = MemoryAllocator.alignUp(size, this.bufferImageGranularity);
+        }
+
+        setMemoryRequirements(pMemReqs, size, alignment, 1 << typeIndex);
+
+        final MemoryBlock parent;
+
+        try {
+            parent = this.allocate(mixed ? MemoryType.IMAGE : memType, pMemReqs, typeIndex, AllocationStrategy.MIN_TIME, false);
+        } catch (MemoryAllocationException ex) {
+            // the memory type is full; allocate the requests on their own so that each can fall back to another type.
+            for (int i : chunk) {
+                out[i] = this.allocate(requests.get(i), pMemReqs);
+            }
+
+            return;
+        }
+
+        final var liveCount = new AtomicInteger(chunk.size());
+
+        for (int i = 0; i < chunk.size(); i++) {
+            out[chunk.get(i)] = new PackedMemoryBlock(parent, liveCount, offsets[firstOffset + i], requests.get(chunk.get(i)).size);
+        }
+    }
+
+    /**
+     * Moves movable blocks out of sparsely used heaps so that those heaps can be released. Each move allocates new
+     * memory, points the movable block at it and calls the block's MoveCallback. The memory the block was moved away
+     * from stays allocated until completeDefragmentation is called, so the owner can finish copying out of it first.
+     * <p>
+     * maxSize and maxMoves bound the work done by a single call. Calling defragment once per frame with a small budget
+     * defragments incrementally without a frame spike. The relocation plan is rebuilt on every call, so a partially
+     * evacuated heap is picked up again by the next call. Call completeDefragmentation before the next defragment;
+     * until then, heaps being evacuated still hold the moved-from memory.
+     *
+     * @return the number of blocks moved.
+     */
+    public int defragment(final long maxSize, final int maxMoves) {
+        final var moved = new ArrayList<MovableMemoryBlock>();
+        final var sources = new ArrayList<MemoryBlock>();
+
+        synchronized (this.moveSources) {
+            final var blocksByHandle = new HashMap<Long, List<MovableMemoryBlock>>();
+
+            for (var block : this.movableBlocks) {
+                blocksByHandle.computeIfAbsent(block.getHandle(), handle -> new ArrayList<>()).add(block);
+            }
+
+            long movedSize = 0L;
+
+            for (var tier : List.of(this.smallBufferHeaps, this.smallImageHeaps, this.standardBufferHeaps, this.standardImageHeaps)) {
+                for (var heaps : tier) {
+                    if (moved.size() == maxMoves) {
+                        break;
+                    }
+
+                    movedSize += defragment(heaps, blocksByHandle, maxSize - movedSize, maxMoves - moved.size(), moved, sources);
+                }
+            }
+
+            this.moveSources.addAll(sources);
+        }
+
+        // owners may allocate from their callbacks, so no lock is held while they run.
+        for (int i = 0; i < moved.size(); i++) {
+            final var block = moved.get(i);
+
+            block.onMove.onMove(block, sources.get(i));
+        }
+
+        return moved.size();
+    }
+
+    /**
+     * Plans and performs the moves for a single heap list.
+     *
+     * @return the number of bytes moved.
+     */
+    private static long defragment(
+            final HeapList<? extends MemoryAllocator> heaps, final Map<Long, List<MovableMemoryBlock>> blocksByHandle,
+            final long maxSize, final int maxMoves, final List<MovableMemoryBlock> moved, final List<MemoryBlock> sources) {
+
+        synchronized (heaps) {
+            if (heaps.size() < 2) {
+                return 0L;
+            }
+
+            final var layouts = new ArrayList<DefragmentationPlanner.Heap>(heaps.size());
+            final var heapBlocks = new ArrayList<List<MovableMemoryBlock>>(heaps.size());
+
+            for (var heap : heaps) {
+                final var blocks = blocksByHandle.getOrDefault(heap.getHandle(), List.of());
+                // any allocation that is not movable, including cached slabs, pins the heap.
+                final var layout = new DefragmentationPlanner.Heap(heap.getAllocationCount() != blocks.size());
+
+                heap.forEachFreeRange(layout::addFreeRange);
+                // the current block size includes the allocator's rounding, so the plan reserves what the allocator will.
+                // every heap in a list has the same kind of allocator, so the source heap's placement rule holds for all.
+                blocks.forEach(block -> layout.addAllocation(block.getSize(), heap.getPlacementAlignment(block.getSize(), block.alignment)));
+                layouts.add(layout);
+                heapBlocks.add(blocks);
+            }
+
+            final var plan = DefragmentationPlanner.plan(layouts);
+            long movedSize = 0L;
+            int moves = 0;
+            // the moves of the source heap being evacuated start at heapStart in moved.
+            int sourceHeap = -1;
+            int heapStart = moved.size();
+            long heapMovedSize = 0L;
+            boolean abandoned = false;
+
+            try (var mem = MemoryStack.stackPush()) {
+                final var pMemReqs = VkMemoryRequirements.callocStack(mem);
+
+                for (var move : plan.moves) {
+                    if (sourceHeap != move.sourceHeap) {
+                        sourceHeap = move.sourceHeap;
+                        heapStart = moved.size();
+                        heapMovedSize = 0L;
+                        abandoned = false;
+                    }
+
+                    if (abandoned) {
+                        continue;
+                    }
+
+                    if (moves == maxMoves || movedSize + move.size > maxSize) {
+                        break;
+                    }
+
+                    final var block = heapBlocks.get(move.sourceHeap).get(move.allocation);
+
+                    setMemoryRequirements(pMemReqs, block.size, block.alignment, 1 << heaps.get(move.destinationHeap).getTypeIndex());
+
+                    final var destination = heaps.get(move.destinationHeap).tryMalloc(block.memType, pMemReqs, AllocationStrategy.MIN_MEMORY);
+
+                    // the allocator disagreed with the plan, so the source heap cannot be emptied by this pass. Moving the
+                    // rest of its blocks would only fill other heaps, so the moves already made out of it are undone.
+                    if (null == destination) {
+                        abandoned = true;
+                        moves -= moved.size() - heapStart;
+                        movedSize -= heapMovedSize;
+                        undoMoves(moved, sources, heapStart);
+                        continue;
+                    }
+
+                    final var source = block.relocate(destination);
+
+                    // the owner freed the block while it was being planned.
+                    if (null == source) {
+                        destination.free();
+                        continue;
+                    }
+
+                    moved.add(block);
+                    sources.add(source);
+                    movedSize += move.size;
+                    heapMovedSize += move.size;
+                    moves++;
+                }
+            }
+
+            return movedSize;
+        }
+    }
+
+    /**
+     * Points the blocks moved since index {@code from} back at their sources and frees the destinations. Their
+     * MoveCallbacks have not run yet, so the owners never see the moves.
+     */
+    private static void undoMoves(final List<MovableMemoryBlock> moved, final List<MemoryBlock> sources, final int from) {
+        for (int i = moved.size() - 1; i >= from; i--) {
+            final var source = sources.remove(i);
+            final var destination = moved.remove(i).relocate(source);
+
+            if (null == destination) {
+                // the owner freed the block after it was moved, which released the destination instead of the source.
+                source.free();
+            } else {
+                destination.free();
+            }
+        }
+    }
+
+    /**
+     * Frees the memory that blocks were moved away from and releases the heaps that were emptied. Call once the copies
+     * recorded by the MoveCallbacks have finished executing.
+     */
+    public void completeDefragmentation() {
+        synchronized (this.moveSources) {
+            this.moveSources.forEach(MemoryBlock::free);
+            this.moveSources.clear();
+        }
+
+        this.garbageCollect();
+    }
+
+    /**
+     * Fills in a VkMemoryRequirements. The struct is returned-only, so it has no setters.
+     */
+    private static void setMemoryRequirements(final VkMemoryRequirements pMemReqs, final long size, final long alignment, final int memoryTypeBits) {
+        MemoryUtil.memPutLong(pMemReqs.address() + VkMemoryRequirements.SIZE, size);
+        MemoryUtil.memPutLong(pMemReqs.address() + VkMemoryRequirements.ALIGNMENT, alignment);
+        MemoryUtil.memPutInt(pMemReqs.address() + VkMemoryRequirements.MEMORYTYPEBITS, memoryTypeBits);
+    }
+
+    /**
+     * A request's share of a packed allocation. The packed allocation is freed along with the last of its blocks.
+     */
+    private static final class PackedMemoryBlock implements MemoryBlock {
+        private final MemoryBlock parent;
+        private final AtomicInteger liveCount;
+        private final long offset;
+        private final long size;
+        private boolean released;
+
+        private PackedMemoryBlock(final MemoryBlock parent, final AtomicInteger liveCount, final long offset, final long size) {
+            this.parent = parent;
+            this.liveCount = liveCount;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public long getHandle() {
+            return this.parent.getHandle();
+        }
+
+        @Override
+        public long getOffset() {
+            return this.parent.getOffset() + this.offset;
+        }
+
+        @Override
+        public long getSize() {
+            return this.size;
+        }
+
+        @Override
+        public long getMemorySize() {
+            return this.parent.getMemorySize();
+        }
+
+        @Override
+        public long mapAddress() {
+            return this.parent.mapAddress() + this.offset;
+        }
+
+        @Override
+        public void unmap() {
+            this.parent.unmap();
+        }
+
+        @Override
+        public void free() {
+            synchronized (this) {
+                if (this.released) {
+                    return;
+                }
+
+                this.released = true;
+            }
+
+            if (0 == this.liveCount.decrementAndGet()) {
+                this.parent.free();
             }
+        }
+
+        @Override
+        public VkDevice getDevice() {
+            return this.parent.getDevice();
+        }
+    }
+
+    /**
+     * A block that defragment may move. It forwards to whichever block currently holds its memory.
+     */
+    private final class MovableMemoryBlock implements MemoryBlock {
+        private final MemoryType memType;
+        private final long size;
+        private final long alignment;
+        private final MoveCallback onMove;
+        private MemoryBlock block;
+        private boolean released;
+
+        private MovableMemoryBlock(final MemoryType memType, final long size, final long alignment, final MoveCallback onMove, final MemoryBlock block) {
+            this.memType = memType;
+            this.size = size;
+            this.alignment = alignment;
+            this.onMove = onMove;
+            this.block = block;
+        }
 
-            final var out = this.largeBufferHeaps[index].malloc(MemoryType.BUFFER, pMemReqs);
+        /**
+         * Points the block at new memory.
+         *
+         * @return the memory the block was moved away from or null if the block was already freed.
+         */
+        private synchronized MemoryBlock relocate(final MemoryBlock destination) {
+            if (this.released) {
+                return null;
+            }
+
+            final var out = this.block;
+
+            this.block = destination;
 
             return out;
-        } else if (size <= SMALL_ALLOC_THRESHOLD) {
-            return allocate(MemoryType.BUFFER, pMemReqs, index, this.smallBufferHeaps, () -> new SlabMemoryAllocator(device, index, SMALL_HEAP_SIZES));
-        } else {
-            return allocate(MemoryType.BUFFER, pMemReqs, index, this.standardBufferHeaps, () -> new BuddyBlockMemoryAllocator(device, index, MINIMUM_BUFFER_SUBDIV_SIZE, STANDARD_BUFFER_HEAP_SIZE));
+        }
+
+        @Override
+        public synchronized long getHandle() {
+            return this.block.getHandle();
+        }
+
+        @Override
+        public synchronized long getOffset() {
+            return this.block.getOffset();
+        }
+
+        @Override
+        public synchronized long getSize() {
+            return this.block.getSize();
+        }
+
+        @Override
+        public synchronized long getMemorySize() {
+            return this.block.getMemorySize();
+        }
+
+        @Override
+        public synchronized long mapAddress() {
+            return this.block.mapAddress();
+        }
+
+        @Override
+        public synchronized void unmap() {
+            this.block.unmap();
+        }
+
+        @Override
+        public synchronized void free() {
+            if (!this.released) {
+                this.released = true;
+                MemoryManager.this.movableBlocks.remove(this);
+                this.block.free();
+            }
+        }
+
+        @Override
+        public VkDevice getDevice() {
+            return MemoryManager.this.getDevice();
         }
     }
 }
@@ -0,0 +1,141 @@
+package demo.vkmm;
+
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Resolves memory type indices from memoryTypeBits and property flags.
+ * Results are cached by (memoryTypeBits, required, preferred) and ordered from best to worst candidate:
+ * fewest missing preferred flags first, then fewest flags that were neither required nor preferred, then lowest index.
+ * Thread-safe; lookups that hit the cache take no lock.
+ */
+public final class MemoryTypeResolver {
+    private static final int[] NO_CANDIDATES = new int[0];
+
+    private final int[] propertyFlags;
+    // replaced wholesale on insert so lookups never lock.
+    private volatile Cache cache = new Cache(new long[16], new int[16][], 0);
+
+    public MemoryTypeResolver(final VkPhysicalDeviceMemoryProperties pMemoryProperties) {
+        this.propertyFlags = new int[pMemoryProperties.memoryTypeCount()];
+
+        for (int i = 0; i < this.propertyFlags.length; i++) {
+            this.propertyFlags[i] = pMemoryProperties.memoryTypes(i).propertyFlags();
+        }
+    }
+
+    public int getMemoryTypeCount() {
+        return this.propertyFlags.length;
+    }
+
+    public int getPropertyFlags(final int typeIndex) {
+        return this.propertyFlags[typeIndex];
+    }
+
+    /**
+     * Retrieves every memory type that satisfies the required flags, ordered by preference.
+     * The returned array is shared and must not be modified.
+     *
+     * @return the candidate memory type indices; empty if no memory type has the required flags.
+     */
+    public int[] getMemoryTypeIndices(final int typeBits, final int required, final int preferred) {
+        // property flags fit in 16 bits for every flag currently defined; wider flags skip the cache.
+        if (0 != ((required | preferred) & 0xFFFF0000)) {
+            return this.resolve(typeBits, required, preferred);
+        }
+
+        final long key = ((long) typeBits << 32) | ((long) required << 16) | preferred;
+        final var cached = this.cache.get(key);
+
+        return null != cached ? cached : this.insert(key, typeBits, required, preferred);
+    }
+
+    private synchronized int[] insert(final long key, final int typeBits, final int required, final int preferred) {
+        final var cached = this.cache.get(key);
+
+        if (null != cached) {
+            return cached;
+        }
+
+        final var out = this.resolve(typeBits, required, preferred);
+
+        this.cache = this.cache.with(key, out);
+
+        return out;
+    }
+
+    private int[] resolve(final int typeBits, final int required, final int preferred) {
+        final var out = IntStream.range(0, this.propertyFlags.length)
+                .filter(i -> 0 != (typeBits & (1 << i)))
+                .filter(i -> required == (this.propertyFlags[i] & required))
+                .boxed()
+                .sorted(Comparator
+                        .<Integer> comparingInt(i -> Integer.bitCount(preferred & ~this.propertyFlags[i]))
+                        .thenComparingInt(i -> Integer.bitCount(this.propertyFlags[i] & ~(required | preferred)))
+                        .thenComparingInt(i -> i))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        return 0 == out.length ? NO_CANDIDATES : out;
+    }
+
+    /**
+     * Immutable open addressing table from a packed key to a candidate list. A null value marks an empty slot.
+     */
+    private static final class Cache {
+        private final long[] keys;
+        private final int[][] values;
+        private final int count;
+
+        private Cache(final long[] keys, final int[][] values, final int count) {
+            this.keys = keys;
+            this.values = values;
+            this.count = count;
+        }
+
+        private static int hash(final long key) {
+            return Long.hashCode(key * 0x9E3779B97F4A7C15L);
+        }
+
+        private int[] get(final long key) {
+            final int mask = this.keys.length - 1;
+
+            for (int slot = hash(key) & mask; null != this.values[slot]; slot = (slot + 1) & mask) {
+                if (key == this.keys[slot]) {
+                    return this.values[slot];
+                }
+            }
+
+            return null;
+        }
+
+        private Cache with(final long key, final int[] value) {
+            final int capacity = (this.count + 1) * 2 > this.keys.length ? this.keys.length * 2 : this.keys.length;
+            final var out = new Cache(new long[capacity], new int[capacity][], this.count + 1);
+
+            for (int i = 0; i < this.keys.length; i++) {
+                if (null != this.values[i]) {
+                    out.put(this.keys[i], this.values[i]);
+                }
+            }
+
+            out.put(key, value);
+
+            return out;
+        }
+
+        private void put(final long key, final int[] value) {
+            final int mask = this.keys.length - 1;
+            int slot = hash(key) & mask;
+
+            while (null != this.values[slot]) {
+                slot = (slot + 1) & mask;
+            }
+
+            this.keys[slot] = key;
+            this.values[slot] = value;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package demo.vkmm;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Objects;
+
+/**
+ * Ring allocator for per-frame transient data over a single persistently mapped VkDeviceMemory.
+ * Allocations bump the head of the ring and belong to the current frame. endFrame closes the current frame under a
+ * frame index or timeline value, and complete releases every closed frame up to a value once its fence or semaphore
+ * has signaled, moving the tail past it. Values must not decrease from one frame to the next.
+ * <p>
+ * An allocation that does not fit before the end of the memory wraps around to offset 0; the skipped bytes are
+ * released with its frame. Neighbours whose MemoryTypes conflict are kept on separate bufferImageGranularity pages.
+ * Not thread-safe; callers must provide their own synchronization.
+ */
+public final class RingMemoryAllocator implements MemoryAllocator {
+    private static final class Frame {
+        private final long value;
+        private final long end;
+        private final long size;
+        private final int allocationCount;
+        private final MemoryType firstType;
+
+        private Frame(final long value, final long end, final long size, final int allocationCount, final MemoryType firstType) {
+            this.value = value;
+            this.end = end;
+            this.size = size;
+            this.allocationCount = allocationCount;
+            this.firstType = firstType;
+        }
+    }
+
+    private final WeakReference<VkDevice> device;
+    private final long size;
+    private final long handle;
+    private final long pageSize;
+    private final int typeIndex;
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private long head;
+    private long tail;
+    private long usedSize;
+    private int allocationCount;
+    // the allocation just below the head.
+    private MemoryType lastType = MemoryType.FREE;
+    private long frameSize;
+    private int frameAllocationCount;
+    private MemoryType frameFirstType = MemoryType.FREE;
+    private long peakUsedSize;
+    private long overflowCount;
+    private long overflowSize;
+    private long address;
+    private int mapCount;
+
+    /**
+     * @param memoryAI must select a HOST_VISIBLE memory type; the memory is mapped for the allocator's whole lifetime.
+     */
+    public RingMemoryAllocator(final VkDevice device, final VkMemoryAllocateInfo memoryAI) throws MemoryAllocationException {
+        this.device = new WeakReference<>(device);
+        this.size = memoryAI.allocationSize();
+
+        try (var mem = MemoryStack.stackPush()) {
+            final var pPhysicalDeviceProps = VkPhysicalDeviceProperties.callocStack(mem);
+
+            VK10.vkGetPhysicalDeviceProperties(device.getPhysicalDevice(), pPhysicalDeviceProps);
+
+            this.pageSize = pPhysicalDeviceProps.limits().bufferImageGranularity();
+            this.typeIndex = memoryAI.memoryTypeIndex();
+
+            final var pHandle = mem.callocLong(1);
+            final int err = VK10.vkAllocateMemory(device, memoryAI, null, pHandle);
+
+            if (VK10.VK_SUCCESS != err) {
+                throw new MemoryAllocationException(err);
+            }
+
+            this.handle = pHandle.get();
+        }
+
+        this.map();
+    }
+
+    /**
+     * Closes the current frame. Everything allocated since the last call is released once complete is called with a
+     * value of at least {@code value}.
+     *
+     * @param value the frame index or timeline semaphore value that signals when the GPU is done with the frame.
+     */
+    public void endFrame(final long value) {
+        if (!this.frames.isEmpty() && value < this.frames.peekLast().value) {
+            throw new IllegalArgumentException("Frame value " + value + " is less than the previous frame value " + this.frames.peekLast().value + "!");
+        }
+
+        this.frames.addLast(new Frame(value, this.head, this.frameSize, this.frameAllocationCount, this.frameFirstType));
+        this.frameSize = 0L;
+        this.frameAllocationCount = 0;
+        this.frameFirstType = MemoryType.FREE;
+    }
+
+    /**
+     * Releases every closed frame whose value is less than or equal to {@code value}.
+     */
+    public void complete(final long value) {
+        while (!this.frames.isEmpty() && this.frames.peekFirst().value <= value) {
+            final var frame = this.frames.removeFirst();
+
+            this.tail = frame.end;
+            this.usedSize -= frame.size;
+            this.allocationCount -= frame.allocationCount;
+        }
+
+        // nothing is live; start over at offset 0 so the next frame gets the whole memory in one piece.
+        if (0L == this.usedSize) {
+            this.head = 0L;
+            this.tail = 0L;
+            this.lastType = MemoryType.FREE;
+        }
+    }
+
+    @Override
+    public MemoryBlock tryMalloc(final MemoryType type, final VkMemoryRequirements pMemReqs, final AllocationStrategy strategy) {
+        final long requiredSize = pMemReqs.size();
+        final long alignment = pMemReqs.alignment();
+        long offset = -1L;
+
+        if (this.usedSize < this.size) {
+            if (this.head < this.tail) {
+                offset = this.fit(this.head, this.tail, this.lastType, this.getTailType(), type, requiredSize, alignment);
+            } else {
+                offset = this.fit(this.head, this.size, this.lastType, MemoryType.FREE, type, requiredSize, alignment);
+
+                if (offset < 0L) {
+                    offset = this.fit(0L, this.tail, MemoryType.FREE, this.getTailType(), type, requiredSize, alignment);
+                }
+            }
+        }
+
+        if (offset < 0L) {
+            this.overflowCount++;
+            this.overflowSize += requiredSize;
+            return null;
+        }
+
+        final long end = offset + requiredSize;
+        // a wrapped allocation also claims the bytes it skipped at the end of the memory.
+        final long claimed = offset >= this.head ? end - this.head : this.size - this.head + end;
+
+        this.head = end == this.size ? 0L : end;
+        this.usedSize += claimed;
+        this.frameSize += claimed;
+        this.peakUsedSize = Math.max(this.peakUsedSize, this.usedSize);
+        this.lastType = type;
+        this.allocationCount++;
+        this.frameAllocationCount++;
+
+        if (MemoryType.FREE == this.frameFirstType) {
+            this.frameFirstType = type;
+        }
+
+        return new RingMemoryBlock(offset, requiredSize);
+    }
+
+    /**
+     * Fits an allocation into the free range [start, limit).
+     *
+     * @return the offset of the allocation or -1 if it does not fit.
+     */
+    private long fit(
+            final long start, final long limit, final MemoryType below, final MemoryType above,
+            final MemoryType type, final long requiredSize, final long alignment) {
+
+        long offset = MemoryAllocator.alignUp(start, alignment);
+
+        if (below.conflicts(type)) {
+            offset = MemoryAllocator.alignUp(offset, this.pageSize);
+        }
+
+        final long end = above.conflicts(type) ? MemoryAllocator.alignUp(offset + requiredSize, this.pageSize) : offset + requiredSize;
+
+        return end <= limit ? offset : -1L;
+    }
+
+    /**
+     * Retrieves the type of the oldest live allocation, which sits just above the tail.
+     */
+    private MemoryType getTailType() {
+        // frames closed without allocating hold nothing above the tail.
+        for (var frame : this.frames) {
+            if (0 != frame.allocationCount) {
+                return frame.firstType;
+            }
+        }
+
+        return this.frameFirstType;
+    }
+
+    /**
+     * Retrieves the number of allocations that did not fit.
+     */
+    public long getOverflowCount() {
+        return this.overflowCount;
+    }
+
+    /**
+     * Retrieves the total bytes requested by allocations that did not fit.
+     */
+    public long getOverflowSize() {
+        return this.overflowSize;
+    }
+
+    /**
+     * Retrieves the most bytes that were ever in use at once, including alignment, granularity and wrap-around padding.
+     */
+    public long getPeakUsedSize() {
+        return this.peakUsedSize;
+    }
+
+    @Override
+    public void free() {
+        this.unmap();
+        VK10.vkFreeMemory(this.getDevice(), this.handle, null);
+    }
+
+    @Override
+    public void mapPersistently() {
+        // the memory is mapped from construction.
+    }
+
+    @Override
+    public VkDevice getDevice() {
+        return Objects.requireNonNull(this.device.get(), "Device was lost!");
+    }
+
+    @Override
+    public long getHandle() {
+        return this.handle;
+    }
+
+    @Override
+    public int getTypeIndex() {
+        return this.typeIndex;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return 0L == this.usedSize;
+    }
+
+    @Override
+    public long getFreeSize() {
+        return this.size - this.usedSize;
+    }
+
+    @Override
+    public long getLargestFreeBlockSize() {
+        if (this.usedSize == this.size) {
+            return 0L;
+        } else if (this.head < this.tail) {
+            return this.tail - this.head;
+        } else {
+            return Math.max(this.size - this.head, this.tail);
+        }
+    }
+
+    @Override
+    public int getAllocationCount() {
+        return this.allocationCount;
+    }
+
+    @Override
+    public void forEachFreeRange(final FreeRangeConsumer consumer) {
+        if (this.usedSize == this.size) {
+            return;
+        }
+
+        if (this.head < this.tail) {
+            consumer.accept(this.head, this.tail - this.head);
+        } else {
+            if (this.head < this.size) {
+                consumer.accept(this.head, this.size - this.head);
+            }
+
+            if (0L < this.tail) {
+                consumer.accept(0L, this.tail);
+            }
+        }
+    }
+
+    private long map() {
+        if (MemoryUtil.NULL == this.address) {
+            try (var mem = MemoryStack.stackPush()) {
+                final var ppData = mem.callocPointer(1);
+                final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0L, this.size, 0, ppData);
+
+                assert VK10.VK_SUCCESS == err;
+
+                this.address = ppData.get(0);
+            }
+        }
+
+        this.mapCount++;
+
+        return this.address;
+    }
+
+    private void unmap() {
+        if (--this.mapCount == 0) {
+            this.address = MemoryUtil.NULL;
+            VK10.vkUnmapMemory(this.getDevice(), this.handle);
+        }
+    }
+
+    private final class RingMemoryBlock implements MemoryBlock {
+        private final long offset;
+        private final long size;
+
+        private RingMemoryBlock(final long offset, final long size) {
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public long getHandle() {
+            return RingMemoryAllocator.this.handle;
+        }
+
+        @Override
+        public long getOffset() {
+            return this.offset;
+        }
+
+        @Override
+        public long getSize() {
+            return this.size;
+        }
+
+        @Override
+        public long getMemorySize() {
+            return RingMemoryAllocator.this.size;
+        }
+
+        @Override
+        public long mapAddress() {
+            return RingMemoryAllocator.this.map() + this.getOffset();
+        }
+
+        @Override
+        public void unmap() {
+            RingMemoryAllocator.this.unmap();
+        }
+
+        @Override
+        public void free() {
+            // released with its frame by complete.
+        }
+
+        @Override
+        public VkDevice getDevice() {
+            return RingMemoryAllocator.this.getDevice();
+        }
+    }
+}
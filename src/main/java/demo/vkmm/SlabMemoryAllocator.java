@@ -8,11 +8,11 @@ import org.lwjgl.vulkan.VkMemoryAllocateInfo;
 import org.lwjgl.vulkan.VkMemoryRequirements;
 
 import java.lang.ref.WeakReference;
-import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
+/**
+ * Slab allocator over a single VkDeviceMemory. Thread-safe: allocation, free and mapping synchronize on the allocator.
+ */
 public final class SlabMemoryAllocator implements MemoryAllocator {
     public static final class SlabSizeInfo {
         public final long size;
@@ -36,15 +36,143 @@ public final class SlabMemoryAllocator implements MemoryAllocator {
         }
     }
 
+    /**
+     * Per-thread magazines of claimed slabs that sit in front of shared SlabMemoryAllocators.
+     * A magazine is refilled in batches by its owner and handed out without locking or allocating.
+     * Slabs freed by the owning thread go back to its magazine, while slabs freed by any other thread return directly
+     * to their SlabMemoryAllocator. Cached slabs stay claimed in their allocator until the magazine is flushed.
+     * <p>
+     * Only the owning thread may call pop, fill and flush. Another thread may call flush once the owner is no longer
+     * alive, or requestFlush at any time to have the owner flush at its next pop or free.
+     */
+    public static final class ThreadCache {
+        private final WeakReference<Thread> owner;
+        private final SlabMemoryAllocator.SlabMemoryBlock[][] magazines;
+        private final int[] counts;
+        private final int capacity;
+        private volatile boolean flushRequested;
+
+        public ThreadCache(final int magazineCount, final int capacity) {
+            this.owner = new WeakReference<>(Thread.currentThread());
+            this.magazines = new SlabMemoryAllocator.SlabMemoryBlock[magazineCount][];
+            this.counts = new int[magazineCount];
+            this.capacity = capacity;
+        }
+
+        public boolean isOwnerAlive() {
+            final var thread = this.owner.get();
+
+            return null != thread && thread.isAlive();
+        }
+
+        /**
+         * Asks the owner to return every cached slab to its SlabMemoryAllocator at its next pop or free.
+         */
+        public void requestFlush() {
+            this.flushRequested = true;
+        }
+
+        /**
+         * Retrieves a cached slab.
+         *
+         * @return the slab or null if the magazine is empty.
+         */
+        public MemoryBlock pop(final int magazine) {
+            this.flushIfRequested();
+
+            if (0 == this.counts[magazine]) {
+                return null;
+            }
+
+            final int top = --this.counts[magazine];
+            final var out = this.magazines[magazine][top];
+
+            this.magazines[magazine][top] = null;
+            out.cached = false;
+
+            return out;
+        }
+
+        /**
+         * Adds a freshly allocated slab to a magazine.
+         *
+         * @return false if the magazine is already full.
+         */
+        public boolean fill(final int magazine, final MemoryBlock block) {
+            if (this.capacity == this.counts[magazine]) {
+                return false;
+            }
+
+            final var slab = (SlabMemoryAllocator.SlabMemoryBlock) block;
+
+            slab.cache = this;
+            slab.magazine = magazine;
+            this.push(slab);
+
+            return true;
+        }
+
+        /**
+         * Returns every cached slab to its SlabMemoryAllocator.
+         */
+        public void flush() {
+            for (int magazine = 0; magazine < this.magazines.length; magazine++) {
+                this.drain(magazine, this.counts[magazine]);
+            }
+        }
+
+        private void recycle(final SlabMemoryAllocator.SlabMemoryBlock slab) {
+            this.push(slab);
+            this.flushIfRequested();
+        }
+
+        private void flushIfRequested() {
+            if (this.flushRequested) {
+                this.flushRequested = false;
+                this.flush();
+            }
+        }
+
+        private void push(final SlabMemoryAllocator.SlabMemoryBlock slab) {
+            final int magazine = slab.magazine;
+
+            if (null == this.magazines[magazine]) {
+                this.magazines[magazine] = new SlabMemoryAllocator.SlabMemoryBlock[this.capacity];
+            } else if (this.capacity == this.counts[magazine]) {
+                // keep half of the magazine so alternating malloc/free does not thrash the shared allocator.
+                this.drain(magazine, (this.capacity + 1) / 2);
+            }
+
+            slab.cached = true;
+            this.magazines[magazine][this.counts[magazine]++] = slab;
+        }
+
+        private void drain(final int magazine, final int count) {
+            for (int i = 0; i < count; i++) {
+                final int top = --this.counts[magazine];
+                final var slab = this.magazines[magazine][top];
+
+                this.magazines[magazine][top] = null;
+                slab.cached = false;
+                slab.cache = null;
+                slab.getAllocator().release(slab);
+            }
+        }
+    }
+
     private final WeakReference<VkDevice> device;
     private final long handle;
     private final long size;
     private final List<SlabList> lists;
     private final int typeIndex;
-    private ByteBuffer address;
+    private int usedCount;
+    private long freeSize;
+    private UsageListener usageListener;
+    private long address;
     private int mapCount;
+    private boolean persistentlyMapped;
 
-    public SlabMemoryAllocator(final VkDevice device, final int typeIndex, final List<SlabSizeInfo> sizeInfos) {
+    public SlabMemoryAllocator(final VkDevice device, final int typeIndex, final List<SlabSizeInfo> sizeInfos) throws MemoryAllocationException {
         this.device = new WeakReference<>(device);
         this.size = sizeInfos.stream()
                 .mapToLong(sizeInfo -> sizeInfo.size * sizeInfo.count)
@@ -61,35 +189,71 @@ public final class SlabMemoryAllocator implements MemoryAllocator {
             final var pHandle = mem.callocLong(1);
             final int err = VK10.vkAllocateMemory(device, pMemoryAI, null, pHandle);
 
-            assert VK10.VK_SUCCESS == err;
+            if (VK10.VK_SUCCESS != err) {
+                throw new MemoryAllocationException(err);
+            }
 
             this.handle = pHandle.get();
         }
 
         this.lists = new ArrayList<>();
+        this.freeSize = this.size;
 
         long offset = 0L;
         for (var sizeInfo : sizeInfos) {
-            final var baseOffset = offset;
-            final var slabs = LongStream.range(0, sizeInfo.count)
-                    .map(idx -> baseOffset + sizeInfo.size * idx)
-                    .mapToObj(off -> new SlabMemoryBlock(off, sizeInfo.size))
-                    .collect(Collectors.toList());
-
-            this.lists.add(new SlabList(sizeInfo.size, slabs));
+            this.lists.add(new SlabList(offset, sizeInfo.size, sizeInfo.count));
             offset += sizeInfo.count * sizeInfo.size;
         }
     }
 
-    public SlabMemoryAllocator(final VkDevice device, final int typeIndex, final SlabSizeInfo... sizeInfos) {
+    public SlabMemoryAllocator(final VkDevice device, final int typeIndex, final SlabSizeInfo... sizeInfos) throws MemoryAllocationException {
         this(device, typeIndex, Arrays.asList(sizeInfos));
     }
 
     @Override
-    public boolean isEmpty() {
-        return this.lists.stream()
-                .flatMap(list -> list.slabs.stream())
-                .noneMatch(slab -> slab.type != MemoryType.FREE);
+    public synchronized boolean isEmpty() {
+        return 0 == this.usedCount;
+    }
+
+    @Override
+    public synchronized long getFreeSize() {
+        return this.freeSize;
+    }
+
+    @Override
+    public synchronized long getLargestFreeBlockSize() {
+        long out = 0L;
+
+        for (var slabList : this.lists) {
+            if (0 != slabList.freeCount) {
+                out = Math.max(out, slabList.size);
+            }
+        }
+
+        return out;
+    }
+
+    @Override
+    public synchronized int getAllocationCount() {
+        return this.usedCount;
+    }
+
+    @Override
+    public synchronized void forEachFreeRange(final FreeRangeConsumer consumer) {
+        for (var slabList : this.lists) {
+            for (int word = 0; word < slabList.freeBits.length; word++) {
+                for (long bits = slabList.freeBits[word]; 0L != bits; bits &= bits - 1L) {
+                    final int slab = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+
+                    consumer.accept(slabList.offsetOf(slab), slabList.size);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getHandle() {
+        return this.handle;
     }
 
     @Override
@@ -98,51 +262,65 @@ public final class SlabMemoryAllocator implements MemoryAllocator {
     }
 
     @Override
-    public MemoryBlock malloc(final MemoryType type, final VkMemoryRequirements pMemReqs) {
-        final var slabListIt = this.lists.listIterator();
+    public synchronized MemoryBlock tryMalloc(final MemoryType type, final VkMemoryRequirements pMemReqs, final AllocationStrategy strategy) {
         final var requiredSize = pMemReqs.size();
         final var alignment = pMemReqs.alignment();
+        SlabList selectedList = null;
+        int selectedSlab = 0;
+        long selectedOffset = 0L;
 
-        while (slabListIt.hasNext()) {
-            final var slabList = slabListIt.next();
-
-            if (slabList.size < requiredSize) {
+        for (var slabList : this.lists) {
+            if (slabList.size < requiredSize || 0 == slabList.freeCount) {
                 continue;
             }
 
-            final var slabIt = slabList.slabs.listIterator();
+            final int slab = slabList.firstFree();
+            final long offset = slabList.offsetOf(slab);
+            final long alignedOffset = MemoryAllocator.alignUp(offset, alignment);
 
-            while (slabIt.hasNext()) {
-                final var theSlab = slabIt.next();
-
-                if (theSlab.type != MemoryType.FREE) {
-                    continue;
-                }
+            if (offset + slabList.size - alignedOffset < requiredSize) {
+                continue;
+            }
 
-                theSlab.align(alignment);
+            final boolean better = null == selectedList
+                    || (AllocationStrategy.MIN_MEMORY == strategy && slabList.size < selectedList.size)
+                    || (AllocationStrategy.MIN_OFFSET == strategy && alignedOffset < selectedOffset);
 
-                if (theSlab.getSize()  >= requiredSize) {
-                    theSlab.type = type;
+            if (better) {
+                selectedList = slabList;
+                selectedSlab = slab;
+                selectedOffset = alignedOffset;
 
-                    return theSlab;
-                } else {
+                if (AllocationStrategy.MIN_TIME == strategy) {
                     break;
                 }
             }
         }
 
-        throw new OutOfMemoryError();
+        if (null == selectedList) {
+            return null;
+        }
+
+        selectedList.claim(selectedSlab);
+        this.usedCount++;
+        this.freeSize -= selectedList.size;
+
+        if (null != this.usageListener) {
+            this.usageListener.onUsageChanged(selectedList.size);
+        }
+
+        return new SlabMemoryBlock(selectedList, selectedSlab, selectedOffset);
     }
 
-    private ByteBuffer map() {
-        if (null == this.address) {
+    private synchronized long map() {
+        if (MemoryUtil.NULL == this.address) {
             try (var mem = MemoryStack.stackPush()) {
                 final var ppData = mem.callocPointer(1);
                 final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0L, this.size, 0, ppData);
 
                 assert VK10.VK_SUCCESS == err;
 
-                this.address = ppData.getByteBuffer(0, (int) this.size);
+                this.address = ppData.get(0);
             }
         }
 
@@ -151,38 +329,91 @@ public final class SlabMemoryAllocator implements MemoryAllocator {
         return this.address;
     }
 
-    private void unmap() {
+    private synchronized void unmap() {
         if (0 == --this.mapCount) {
-            this.address = null;
+            this.address = MemoryUtil.NULL;
             VK10.vkUnmapMemory(this.getDevice(), this.handle);
         }
     }
 
+    /**
+     * Frees this allocator's blocks under one lock. Blocks freed this way bypass the thread caches.
+     */
+    @Override
+    public void freeBlocks(final List<? extends MemoryBlock> blocks) {
+        final var others = new ArrayList<MemoryBlock>();
+
+        synchronized (this) {
+            for (var block : blocks) {
+                if (block instanceof SlabMemoryBlock && this == ((SlabMemoryBlock) block).getAllocator()) {
+                    final var slab = (SlabMemoryBlock) block;
+
+                    slab.cache = null;
+                    this.release(slab);
+                } else {
+                    others.add(block);
+                }
+            }
+        }
+
+        others.forEach(MemoryBlock::free);
+    }
+
+    private synchronized void release(final SlabMemoryBlock block) {
+        if (!block.released) {
+            block.released = true;
+            block.list.release(block.slab);
+            this.usedCount--;
+            this.freeSize += block.list.size;
+
+            if (null != this.usageListener) {
+                this.usageListener.onUsageChanged(-block.list.size);
+            }
+        }
+    }
+
+    /**
+     * Reports every later change in allocated bytes to the listener, from inside the allocator's lock. The changes add
+     * up to the change in getFreeSize.
+     */
+    public synchronized void setUsageListener(final UsageListener listener) {
+        this.usageListener = listener;
+    }
+
     @Override
     public void free() {
         VK10.vkFreeMemory(this.getDevice(), this.handle, null);
     }
 
+    @Override
+    public synchronized void mapPersistently() {
+        if (!this.persistentlyMapped) {
+            this.persistentlyMapped = true;
+            this.map();
+        }
+    }
+
     @Override
     public VkDevice getDevice() {
         return Objects.requireNonNull(this.device.get(), "Device was lost!");
     }
 
+    /**
+     * A view of an allocated slab. Slab state lives in the owning SlabList's primitive arrays.
+     */
     private final class SlabMemoryBlock implements MemoryBlock {
-        private final long offset;
-        private final long size;
-        private long alignedOffset;
-        private MemoryType type;
-
-        private SlabMemoryBlock(final long offset, final long size) {
-            this.offset = offset;
-            this.alignedOffset = offset;
-            this.size = size;
-            this.type = MemoryType.FREE;
-        }
-
-        private void align(final long alignment) {
-            this.alignedOffset = MemoryAllocator.alignUp(this.offset, alignment);
+        private final SlabList list;
+        private final int slab;
+        private final long alignedOffset;
+        private boolean released;
+        private ThreadCache cache;
+        private int magazine;
+        private boolean cached;
+
+        private SlabMemoryBlock(final SlabList list, final int slab, final long alignedOffset) {
+            this.list = list;
+            this.slab = slab;
+            this.alignedOffset = alignedOffset;
         }
 
         @Override
@@ -197,25 +428,40 @@ public final class SlabMemoryAllocator implements MemoryAllocator {
 
         @Override
         public long getSize() {
-            return this.offset + this.size - this.alignedOffset;
+            return this.list.offsetOf(this.slab) + this.list.size - this.alignedOffset;
         }
 
         @Override
-        public ByteBuffer map() {
-            final var superBlock = SlabMemoryAllocator.this.map();
+        public long getMemorySize() {
+            return SlabMemoryAllocator.this.size;
+        }
 
-            return MemoryUtil.memSlice(superBlock, (int) this.getOffset(), (int) this.getSize());
+        @Override
+        public long mapAddress() {
+            return SlabMemoryAllocator.this.map() + this.getOffset();
         }
 
         @Override
         public void unmap() {
-            SlabMemoryAllocator.this.unmap();;
+            SlabMemoryAllocator.this.unmap();
+        }
+
+        private SlabMemoryAllocator getAllocator() {
+            return SlabMemoryAllocator.this;
         }
 
         @Override
         public void free() {
-            this.alignedOffset = this.offset;
-            this.type = MemoryType.FREE;
+            final var owner = this.cache;
+
+            if (null != owner && owner.owner.get() == Thread.currentThread()) {
+                if (!this.cached) {
+                    owner.recycle(this);
+                }
+            } else {
+                this.cache = null;
+                SlabMemoryAllocator.this.release(this);
+            }
         }
 
         @Override
@@ -224,13 +470,56 @@ public final class SlabMemoryAllocator implements MemoryAllocator {
         }
     }
 
-    private final class SlabList {
+    /**
+     * The slabs of one size. Package-private so the bitmap can be exercised without a VkDevice.
+     */
+    static final class SlabList {
+        private final long baseOffset;
         private final long size;
-        private final List<SlabMemoryBlock> slabs;
-
-        private SlabList(final long size, final List<SlabMemoryBlock> slabs) {
+        private final int count;
+        // one bit per slab; a set bit marks a free slab.
+        private final long[] freeBits;
+        private int freeCount;
+        // no word before this index has a free bit.
+        private int searchStart;
+
+        SlabList(final long baseOffset, final long size, final int count) {
+            this.baseOffset = baseOffset;
             this.size = size;
-            this.slabs = List.copyOf(slabs);
+            this.count = count;
+            this.freeBits = new long[(count + Long.SIZE - 1) / Long.SIZE];
+            this.freeCount = count;
+
+            Arrays.fill(this.freeBits, -1L);
+
+            if (0 != count % Long.SIZE) {
+                this.freeBits[this.freeBits.length - 1] = (1L << count) - 1L;
+            }
+        }
+
+        private long offsetOf(final int slab) {
+            return this.baseOffset + this.size * slab;
+        }
+
+        int firstFree() {
+            while (0L == this.freeBits[this.searchStart]) {
+                this.searchStart++;
+            }
+
+            return this.searchStart * Long.SIZE + Long.numberOfTrailingZeros(this.freeBits[this.searchStart]);
+        }
+
+        void claim(final int slab) {
+            this.freeBits[slab / Long.SIZE] &= ~(1L << slab);
+            this.freeCount--;
+        }
+
+        void release(final int slab) {
+            final int word = slab / Long.SIZE;
+
+            this.freeBits[word] |= 1L << slab;
+            this.freeCount++;
+            this.searchStart = Math.min(this.searchStart, word);
         }
     }
 }
@@ -5,28 +5,39 @@ import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.*;
 
 import java.lang.ref.WeakReference;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * Based on MemoryStack from LWJGL
+ * Not thread-safe; like MemoryStack, an instance is intended to be used by a single thread.
+ * <p>
+ * When the current page is full, another VkDeviceMemory page is chained on, at least as large as the first. Pages chained
+ * within a frame are returned to a free pool when the frame is popped and reused by later overflows; trim releases them.
+ * Frames may be nested to any depth.
  */
 public class StackMemoryAllocator implements MemoryAllocator, AutoCloseable {
-    private static final int MAX_STACK_FRAMES = 8;
+    private static final int INITIAL_STACK_FRAMES = 8;
 
     private final WeakReference<VkDevice> device;
     private final long size;
-    private final long handle;
     private final long pageSize;
-    private final long[] frames = new long[MAX_STACK_FRAMES];
     private final int typeIndex;
+    // pages in use; the last one is allocated from.
+    private final List<Page> pages = new ArrayList<>();
+    private final List<Page> freePages = new ArrayList<>();
+    private long[] framePointers = new long[INITIAL_STACK_FRAMES];
+    private int[] framePages = new int[INITIAL_STACK_FRAMES];
+    private int[] frameAllocationCounts = new int[INITIAL_STACK_FRAMES];
+    private MemoryType[] frameLastTypes = new MemoryType[INITIAL_STACK_FRAMES];
     private int frameIndex;
-    private long pointer;
+    private int allocationCount;
     private MemoryType lastType = MemoryType.FREE;
-    private ByteBuffer address;
-    private int mapCount = 0;
+    private boolean persistentlyMapped;
 
-    public StackMemoryAllocator(final VkDevice device, final VkMemoryAllocateInfo allocateInfo) {
+    public StackMemoryAllocator(final VkDevice device, final VkMemoryAllocateInfo allocateInfo) throws MemoryAllocationException {
         this.device = new WeakReference<>(device);
         this.size = allocateInfo.allocationSize();
         this.typeIndex = allocateInfo.memoryTypeIndex();
@@ -37,20 +48,26 @@ public class StackMemoryAllocator implements MemoryAllocator, AutoCloseable {
             VK10.vkGetPhysicalDeviceProperties(device.getPhysicalDevice(), pPhysicalDeviceProperties);
 
             this.pageSize = pPhysicalDeviceProperties.limits().bufferImageGranularity();
+        }
 
-            final var pHandle = mem.callocLong(1);
-            final int err = VK10.vkAllocateMemory(this.getDevice(), allocateInfo, null, pHandle);
+        this.pages.add(new Page(allocateInfo));
+    }
 
-            assert VK10.VK_SUCCESS == err;
+    private Page getCurrentPage() {
+        return this.pages.get(this.pages.size() - 1);
+    }
 
-            this.handle = pHandle.get();
+    /**
+     * Allocates from the top of a page, growing downwards.
+     *
+     * @return the offset or -1 if the page does not have room.
+     */
+    private long mallocImpl(final Page page, final MemoryType type, final long size, final long alignment) {
+        if (size > page.pointer) {
+            return -1L;
         }
 
-        this.pointer = this.size;
-    }
-
-    private long mallocImpl(final MemoryType type, final long size, final long alignment) {
-        long newPointer = this.pointer - size;
+        long newPointer = page.pointer - size;
 
         newPointer &= ~(alignment - 1);
 
@@ -58,12 +75,56 @@ public class StackMemoryAllocator implements MemoryAllocator, AutoCloseable {
             newPointer &= ~(pageSize - 1);
         }
 
-        this.pointer = newPointer;
+        if (newPointer < 0L) {
+            return -1L;
+        }
+
+        page.pointer = newPointer;
         this.lastType = type;
+        this.allocationCount++;
 
         return newPointer;
     }
 
+    /**
+     * Chains a page that can hold the allocation, preferring one from the free pool.
+     *
+     * @return the page or null if a new page could not be allocated.
+     */
+    private Page chainPage(final long size, final long alignment) {
+        // a fresh page is page aligned and starts at offset 0, so this much room always fits the allocation.
+        final long requiredSize = MemoryAllocator.alignUp(size, Math.max(alignment, this.pageSize));
+
+        for (int i = 0; i < this.freePages.size(); i++) {
+            if (this.freePages.get(i).size >= requiredSize) {
+                final var out = this.freePages.remove(i);
+
+                this.pages.add(out);
+                return out;
+            }
+        }
+
+        final Page out;
+
+        try (var mem = MemoryStack.stackPush()) {
+            final var pAllocateInfo = VkMemoryAllocateInfo.callocStack(mem)
+                    .sType(VK10.VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+                    .memoryTypeIndex(this.typeIndex)
+                    .allocationSize(Math.max(this.size, requiredSize));
+
+            out = new Page(pAllocateInfo);
+        } catch (MemoryAllocationException ex) {
+            return null;
+        }
+
+        if (this.persistentlyMapped) {
+            out.map();
+        }
+
+        this.pages.add(out);
+        return out;
+    }
+
     @Override
     public void close() {
         pop();
@@ -75,27 +136,85 @@ public class StackMemoryAllocator implements MemoryAllocator, AutoCloseable {
             return null;
         }
 
-        this.pointer = this.frames[--this.frameIndex];
+        this.frameIndex--;
+
+        final int page = this.framePages[this.frameIndex];
+
+        // pages chained within the frame go back to the pool.
+        while (this.pages.size() - 1 > page) {
+            final var chained = this.pages.remove(this.pages.size() - 1);
+
+            chained.pointer = chained.size;
+            this.freePages.add(chained);
+        }
+
+        this.getCurrentPage().pointer = this.framePointers[this.frameIndex];
+        this.allocationCount = this.frameAllocationCounts[this.frameIndex];
+        this.lastType = this.frameLastTypes[this.frameIndex];
         return this;
     }
 
     public StackMemoryAllocator push() {
-        this.frames[this.frameIndex++] = this.pointer;
+        if (this.framePointers.length == this.frameIndex) {
+            final int capacity = this.frameIndex * 2;
+
+            this.framePointers = Arrays.copyOf(this.framePointers, capacity);
+            this.framePages = Arrays.copyOf(this.framePages, capacity);
+            this.frameAllocationCounts = Arrays.copyOf(this.frameAllocationCounts, capacity);
+            this.frameLastTypes = Arrays.copyOf(this.frameLastTypes, capacity);
+        }
+
+        this.framePointers[this.frameIndex] = this.getCurrentPage().pointer;
+        this.framePages[this.frameIndex] = this.pages.size() - 1;
+        this.frameAllocationCounts[this.frameIndex] = this.allocationCount;
+        this.frameLastTypes[this.frameIndex] = this.lastType;
+        this.frameIndex++;
 
         return this;
     }
 
+    /**
+     * Releases the pages in the free pool.
+     */
+    public void trim() {
+        this.freePages.forEach(Page::free);
+        this.freePages.clear();
+    }
+
     @Override
-    public MemoryBlock malloc(MemoryType type, VkMemoryRequirements pMemReqs) {
+    public MemoryBlock tryMalloc(MemoryType type, VkMemoryRequirements pMemReqs, AllocationStrategy strategy) {
         final long size = pMemReqs.size();
-        final long offset = mallocImpl(type, size, pMemReqs.alignment());
+        final long alignment = pMemReqs.alignment();
+        var page = this.getCurrentPage();
+        long offset = mallocImpl(page, type, size, alignment);
+
+        if (offset < 0L) {
+            page = this.chainPage(size, alignment);
 
-        return new StackMemoryBlock(offset, size);
+            if (null == page) {
+                return null;
+            }
+
+            this.lastType = MemoryType.FREE;
+            offset = mallocImpl(page, type, size, alignment);
+        }
+
+        return new StackMemoryBlock(page, offset, size);
     }
 
     @Override
     public void free() {
-        VK10.vkFreeMemory(this.getDevice(), this.handle, null);
+        this.pages.forEach(Page::free);
+        this.trim();
+    }
+
+    @Override
+    public void mapPersistently() {
+        if (!this.persistentlyMapped) {
+            this.persistentlyMapped = true;
+            this.pages.forEach(Page::map);
+            this.freePages.forEach(Page::map);
+        }
     }
 
     @Override
@@ -103,6 +222,14 @@ public class StackMemoryAllocator implements MemoryAllocator, AutoCloseable {
         return Objects.requireNonNull(this.device.get(), "Device was lost!");
     }
 
+    /**
+     * Retrieves the handle of the first page. Blocks report the handle of the page they were allocated from.
+     */
+    @Override
+    public long getHandle() {
+        return this.pages.get(0).handle;
+    }
+
     @Override
     public int getTypeIndex() {
         return this.typeIndex;
@@ -110,45 +237,119 @@ public class StackMemoryAllocator implements MemoryAllocator, AutoCloseable {
 
     @Override
     public boolean isEmpty() {
-        return this.pointer == this.size;
+        return 1 == this.pages.size() && this.getCurrentPage().pointer == this.size;
+    }
+
+    /**
+     * Retrieves the bytes free in the current page and the free pool.
+     */
+    @Override
+    public long getFreeSize() {
+        long out = this.getCurrentPage().pointer;
+
+        for (var page : this.freePages) {
+            out += page.size;
+        }
+
+        return out;
+    }
+
+    @Override
+    public long getLargestFreeBlockSize() {
+        long out = this.getCurrentPage().pointer;
+
+        for (var page : this.freePages) {
+            out = Math.max(out, page.size);
+        }
+
+        return out;
+    }
+
+    @Override
+    public int getAllocationCount() {
+        return this.allocationCount;
     }
 
-    private ByteBuffer map() {
-        if (null == this.address) {
+    /**
+     * Reports the free range of the first page while no other page is chained; ranges of chained pages belong to other
+     * VkDeviceMemory objects and are not reported.
+     */
+    @Override
+    public void forEachFreeRange(final FreeRangeConsumer consumer) {
+        if (1 == this.pages.size() && 0L < this.getCurrentPage().pointer) {
+            consumer.accept(0L, this.getCurrentPage().pointer);
+        }
+    }
+
+    /**
+     * One VkDeviceMemory of the stack.
+     */
+    private final class Page {
+        private final long handle;
+        private final long size;
+        private long pointer;
+        private long address;
+        private int mapCount;
+
+        private Page(final VkMemoryAllocateInfo allocateInfo) throws MemoryAllocationException {
+            this.size = allocateInfo.allocationSize();
+            this.pointer = this.size;
+
             try (var mem = MemoryStack.stackPush()) {
-                final var ppData = mem.callocPointer(1);
-                final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0L, this.size, 0, ppData);
+                final var pHandle = mem.callocLong(1);
+                final int err = VK10.vkAllocateMemory(StackMemoryAllocator.this.getDevice(), allocateInfo, null, pHandle);
 
-                assert VK10.VK_SUCCESS == err;
+                if (VK10.VK_SUCCESS != err) {
+                    throw new MemoryAllocationException(err);
+                }
 
-                this.address = ppData.getByteBuffer(0, (int) this.size);
+                this.handle = pHandle.get();
             }
         }
 
-        this.mapCount++;
+        private long map() {
+            if (MemoryUtil.NULL == this.address) {
+                try (var mem = MemoryStack.stackPush()) {
+                    final var ppData = mem.callocPointer(1);
+                    final int err = VK10.vkMapMemory(StackMemoryAllocator.this.getDevice(), this.handle, 0L, this.size, 0, ppData);
 
-        return this.address;
-    }
+                    assert VK10.VK_SUCCESS == err;
+
+                    this.address = ppData.get(0);
+                }
+            }
+
+            this.mapCount++;
 
-    private void unmap() {
-        if (0 == --this.mapCount) {
-            this.address = null;
-            VK10.vkUnmapMemory(this.getDevice(), this.handle);
+            return this.address;
+        }
+
+        private void unmap() {
+            if (0 == --this.mapCount) {
+                this.address = MemoryUtil.NULL;
+                VK10.vkUnmapMemory(StackMemoryAllocator.this.getDevice(), this.handle);
+            }
+        }
+
+        private void free() {
+            VK10.vkFreeMemory(StackMemoryAllocator.this.getDevice(), this.handle, null);
         }
     }
 
     private final class StackMemoryBlock implements MemoryBlock {
+        private final Page page;
         private final long offset;
         private final long size;
 
-        private StackMemoryBlock(final long offset, final long size) {
+        private StackMemoryBlock(final Page page, final long offset, final long size) {
+            this.page = page;
             this.offset = offset;
             this.size = size;
         }
 
         @Override
         public long getHandle() {
-            return StackMemoryAllocator.this.handle;
+            return this.page.handle;
         }
 
         @Override
@@ -162,15 +363,18 @@ public class StackMemoryAllocator implements MemoryAllocator, AutoCloseable {
         }
 
         @Override
-        public ByteBuffer map() {
-            final var superBlock = StackMemoryAllocator.this.map();
+        public long getMemorySize() {
+            return this.page.size;
+        }
 
-            return MemoryUtil.memSlice(superBlock, (int) this.offset, (int) this.size);
+        @Override
+        public long mapAddress() {
+            return this.page.map() + this.getOffset();
         }
 
         @Override
         public void unmap() {
-            StackMemoryAllocator.this.unmap();
+            this.page.unmap();
         }
 
         @Override
@@ -0,0 +1,557 @@
+package demo.vkmm;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VK10;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Two-Level Segregated Fit allocator over a single VkDeviceMemory.
+ * Free blocks are binned by the position of their highest bit (first level) and the next SL_LOG2 bits (second level);
+ * a bitmap per level finds a suitable bin in constant time. Neighbouring free blocks are coalesced immediately on free,
+ * and alignment is handled by splitting the padding off the front of a block.
+ * <p>
+ * Block metadata is kept in primitive arrays indexed by node id. Thread-safe: allocation, free and mapping synchronize
+ * on the allocator.
+ */
+public final class TLSFMemoryAllocator implements MemoryAllocator {
+    private static final int SL_LOG2 = 4;
+    private static final int SL_COUNT = 1 << SL_LOG2;
+    private static final int FL_COUNT = Long.SIZE - SL_LOG2 + 1;
+    private static final int NO_NODE = -1;
+    // every block offset and size is a multiple of the granularity, so front padding can always become its own block.
+    private static final long GRANULARITY = 256L;
+
+    private final WeakReference<VkDevice> device;
+    private final long size;
+    private final long handle;
+    private final int typeIndex;
+    private long flBitmap;
+    private final int[] slBitmaps = new int[FL_COUNT];
+    private final int[] freeLists = new int[FL_COUNT * SL_COUNT];
+    private long[] offsets;
+    private long[] sizes;
+    private boolean[] free;
+    private int[] prevPhys;
+    private int[] nextPhys;
+    private int[] prevFree;
+    private int[] nextFree;
+    private int[] unusedNodes;
+    private int unusedCount;
+    // the block at offset 0; it is never merged into a predecessor, so its node id never changes.
+    private final int firstNode;
+    private long usedSize;
+    private int allocationCount;
+    private UsageListener usageListener;
+    private long address;
+    private int mapCount;
+    private boolean persistentlyMapped;
+
+    public TLSFMemoryAllocator(final VkDevice device, final int typeIndex, final long totalSize) throws MemoryAllocationException {
+        this.device = new WeakReference<>(device);
+        this.size = totalSize / GRANULARITY * GRANULARITY;
+        this.typeIndex = typeIndex;
+
+        try (var mem = MemoryStack.stackPush()) {
+            final var pMemoryAI = VkMemoryAllocateInfo.callocStack(mem)
+                    .sType(VK10.VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+                    .memoryTypeIndex(this.typeIndex)
+                    .allocationSize(this.size);
+
+            final var pHandle = mem.callocLong(1);
+            final int err = VK10.vkAllocateMemory(device, pMemoryAI, null, pHandle);
+
+            if (VK10.VK_SUCCESS != err) {
+                throw new MemoryAllocationException(err);
+            }
+
+            this.handle = pHandle.get();
+        }
+
+        Arrays.fill(this.freeLists, NO_NODE);
+        this.growNodes(64);
+
+        this.firstNode = this.newNode(0L, this.size);
+        this.insertFree(this.firstNode);
+    }
+
+    @Override
+    public synchronized MemoryBlock tryMalloc(final MemoryType type, final VkMemoryRequirements pMemReqs, final AllocationStrategy strategy) {
+        final long alignment = Math.max(GRANULARITY, pMemReqs.alignment());
+        final long alignedSize = MemoryAllocator.alignUp(Math.max(1L, pMemReqs.size()), GRANULARITY);
+        // any block this large can fit the request after its front is padded out to the alignment.
+        final long searchSize = alignment > GRANULARITY ? alignedSize + alignment - GRANULARITY : alignedSize;
+        final int node;
+
+        switch (strategy) {
+            case MIN_MEMORY:
+                node = this.findBestFit(searchSize, alignedSize, alignment);
+                break;
+            case MIN_OFFSET:
+                node = this.findLowestFit(alignedSize, alignment);
+                break;
+            default:
+                node = this.findFree(searchSize);
+                break;
+        }
+
+        if (NO_NODE == node) {
+            return null;
+        }
+
+        this.removeFree(node);
+
+        final long padding = MemoryAllocator.alignUp(this.offsets[node], alignment) - this.offsets[node];
+        int alloc = node;
+
+        if (0L != padding) {
+            alloc = this.splitAfter(node, padding);
+            this.insertFree(node);
+        }
+
+        if (this.sizes[alloc] - alignedSize >= GRANULARITY) {
+            this.insertFree(this.splitAfter(alloc, alignedSize));
+        }
+
+        this.free[alloc] = false;
+        this.usedSize += this.sizes[alloc];
+        this.allocationCount++;
+
+        if (null != this.usageListener) {
+            this.usageListener.onUsageChanged(this.sizes[alloc]);
+        }
+
+        return new TLSFMemoryBlock(alloc, this.offsets[alloc], this.sizes[alloc]);
+    }
+
+    /**
+     * Reports every later change in allocated bytes to the listener, from inside the allocator's lock. The changes add
+     * up to the change in getFreeSize.
+     */
+    public synchronized void setUsageListener(final UsageListener listener) {
+        this.usageListener = listener;
+    }
+
+    @Override
+    public void free() {
+        VK10.vkFreeMemory(this.getDevice(), this.handle, null);
+    }
+
+    @Override
+    public synchronized void mapPersistently() {
+        if (!this.persistentlyMapped) {
+            this.persistentlyMapped = true;
+            this.map();
+        }
+    }
+
+    @Override
+    public VkDevice getDevice() {
+        return Objects.requireNonNull(this.device.get(), "Device was lost!");
+    }
+
+    @Override
+    public long getHandle() {
+        return this.handle;
+    }
+
+    @Override
+    public int getTypeIndex() {
+        return this.typeIndex;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return 0L == this.usedSize;
+    }
+
+    @Override
+    public synchronized long getFreeSize() {
+        return this.size - this.usedSize;
+    }
+
+    @Override
+    public synchronized long getLargestFreeBlockSize() {
+        if (0L == this.flBitmap) {
+            return 0L;
+        }
+
+        // the largest block is somewhere in the highest non-empty bin; bins are short, so scan it.
+        final int fl = Long.SIZE - 1 - Long.numberOfLeadingZeros(this.flBitmap);
+        final int sl = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(this.slBitmaps[fl]);
+        long out = 0L;
+
+        for (int node = this.freeLists[fl * SL_COUNT + sl]; NO_NODE != node; node = this.nextFree[node]) {
+            out = Math.max(out, this.sizes[node]);
+        }
+
+        return out;
+    }
+
+    @Override
+    public synchronized int getAllocationCount() {
+        return this.allocationCount;
+    }
+
+    @Override
+    public synchronized void forEachFreeRange(final FreeRangeConsumer consumer) {
+        for (int node = this.firstNode; NO_NODE != node; node = this.nextPhys[node]) {
+            if (this.free[node]) {
+                consumer.accept(this.offsets[node], this.sizes[node]);
+            }
+        }
+    }
+
+    @Override
+    public void freeBlocks(final List<? extends MemoryBlock> blocks) {
+        final var others = new ArrayList<MemoryBlock>();
+
+        synchronized (this) {
+            for (var block : blocks) {
+                if (block instanceof TLSFMemoryBlock && this == ((TLSFMemoryBlock) block).getAllocator()) {
+                    this.release((TLSFMemoryBlock) block);
+                } else {
+                    others.add(block);
+                }
+            }
+        }
+
+        others.forEach(MemoryBlock::free);
+    }
+
+    private synchronized void release(final TLSFMemoryBlock block) {
+        if (block.released) {
+            return;
+        }
+
+        block.released = true;
+
+        int node = block.node;
+
+        this.free[node] = true;
+        this.usedSize -= this.sizes[node];
+        this.allocationCount--;
+
+        if (null != this.usageListener) {
+            this.usageListener.onUsageChanged(-this.sizes[node]);
+        }
+
+        final int next = this.nextPhys[node];
+
+        if (NO_NODE != next && this.free[next]) {
+            this.removeFree(next);
+            this.merge(node, next);
+        }
+
+        final int prev = this.prevPhys[node];
+
+        if (NO_NODE != prev && this.free[prev]) {
+            this.removeFree(prev);
+            this.merge(prev, node);
+            node = prev;
+        }
+
+        this.insertFree(node);
+    }
+
+    /**
+     * Maps a size to its bin.
+     *
+     * @return the first level index in the high 32 bits and the second level index in the low 32 bits.
+     */
+    private static long mapping(final long size) {
+        if (size < SL_COUNT) {
+            return size;
+        }
+
+        final int fl = Long.SIZE - 1 - Long.numberOfLeadingZeros(size);
+        final int sl = (int) (size >>> (fl - SL_LOG2)) ^ SL_COUNT;
+
+        return ((long) (fl - SL_LOG2 + 1) << 32) | sl;
+    }
+
+    private int findFree(final long size) {
+        // round up to the next bin so that any block in the bin found is large enough.
+        long searchSize = size;
+
+        if (size >= SL_COUNT) {
+            searchSize += (1L << (Long.SIZE - 1 - Long.numberOfLeadingZeros(size) - SL_LOG2)) - 1L;
+        }
+
+        final long bin = mapping(searchSize);
+        int fl = (int) (bin >>> 32);
+        int sl = (int) bin;
+
+        if (fl >= FL_COUNT) {
+            return NO_NODE;
+        }
+
+        int slMap = sl < SL_COUNT ? this.slBitmaps[fl] & (~0 << sl) : 0;
+
+        if (0 == slMap) {
+            final long flMap = fl + 1 < FL_COUNT ? this.flBitmap & (~0L << (fl + 1)) : 0L;
+
+            if (0L == flMap) {
+                return NO_NODE;
+            }
+
+            fl = Long.numberOfTrailingZeros(flMap);
+            slMap = this.slBitmaps[fl];
+        }
+
+        sl = Integer.numberOfTrailingZeros(slMap);
+
+        return this.freeLists[fl * SL_COUNT + sl];
+    }
+
+    private boolean fits(final int node, final long alignedSize, final long alignment) {
+        final long padding = MemoryAllocator.alignUp(this.offsets[node], alignment) - this.offsets[node];
+
+        return this.sizes[node] >= alignedSize + padding;
+    }
+
+    /**
+     * Searches the bin that the request itself maps to for the smallest block that fits, then falls back to the
+     * good-fit search of the next larger bins.
+     */
+    private int findBestFit(final long searchSize, final long alignedSize, final long alignment) {
+        final long bin = mapping(alignedSize);
+        final int fl = (int) (bin >>> 32);
+        int out = NO_NODE;
+
+        if (fl < FL_COUNT) {
+            for (int node = this.freeLists[fl * SL_COUNT + (int) bin]; NO_NODE != node; node = this.nextFree[node]) {
+                if (this.fits(node, alignedSize, alignment) && (NO_NODE == out || this.sizes[node] < this.sizes[out])) {
+                    out = node;
+                }
+            }
+        }
+
+        return NO_NODE != out ? out : this.findFree(searchSize);
+    }
+
+    /**
+     * Walks the blocks in address order and takes the first free block that fits.
+     */
+    private int findLowestFit(final long alignedSize, final long alignment) {
+        for (int node = this.firstNode; NO_NODE != node; node = this.nextPhys[node]) {
+            if (this.free[node] && this.fits(node, alignedSize, alignment)) {
+                return node;
+            }
+        }
+
+        return NO_NODE;
+    }
+
+    private void insertFree(final int node) {
+        final long bin = mapping(this.sizes[node]);
+        final int fl = (int) (bin >>> 32);
+        final int sl = (int) bin;
+        final int list = fl * SL_COUNT + sl;
+        final int head = this.freeLists[list];
+
+        this.free[node] = true;
+        this.prevFree[node] = NO_NODE;
+        this.nextFree[node] = head;
+
+        if (NO_NODE != head) {
+            this.prevFree[head] = node;
+        }
+
+        this.freeLists[list] = node;
+        this.slBitmaps[fl] |= 1 << sl;
+        this.flBitmap |= 1L << fl;
+    }
+
+    private void removeFree(final int node) {
+        final long bin = mapping(this.sizes[node]);
+        final int fl = (int) (bin >>> 32);
+        final int sl = (int) bin;
+        final int list = fl * SL_COUNT + sl;
+        final int prev = this.prevFree[node];
+        final int next = this.nextFree[node];
+
+        if (NO_NODE != prev) {
+            this.nextFree[prev] = next;
+        } else {
+            this.freeLists[list] = next;
+
+            if (NO_NODE == next) {
+                this.slBitmaps[fl] &= ~(1 << sl);
+
+                if (0 == this.slBitmaps[fl]) {
+                    this.flBitmap &= ~(1L << fl);
+                }
+            }
+        }
+
+        if (NO_NODE != next) {
+            this.prevFree[next] = prev;
+        }
+
+        this.prevFree[node] = NO_NODE;
+        this.nextFree[node] = NO_NODE;
+    }
+
+    /**
+     * Splits a block in two, keeping the first {@code size} bytes in the original node.
+     *
+     * @return the node holding the remainder.
+     */
+    private int splitAfter(final int node, final long size) {
+        final int rest = this.newNode(this.offsets[node] + size, this.sizes[node] - size);
+        final int next = this.nextPhys[node];
+
+        this.sizes[node] = size;
+        this.prevPhys[rest] = node;
+        this.nextPhys[rest] = next;
+        this.nextPhys[node] = rest;
+
+        if (NO_NODE != next) {
+            this.prevPhys[next] = rest;
+        }
+
+        return rest;
+    }
+
+    /**
+     * Absorbs a node into its physical predecessor and recycles the node id.
+     */
+    private void merge(final int node, final int next) {
+        final int after = this.nextPhys[next];
+
+        this.sizes[node] += this.sizes[next];
+        this.nextPhys[node] = after;
+
+        if (NO_NODE != after) {
+            this.prevPhys[after] = node;
+        }
+
+        this.unusedNodes[this.unusedCount++] = next;
+    }
+
+    private int newNode(final long offset, final long size) {
+        if (0 == this.unusedCount) {
+            this.growNodes(this.offsets.length * 2);
+        }
+
+        final int node = this.unusedNodes[--this.unusedCount];
+
+        this.offsets[node] = offset;
+        this.sizes[node] = size;
+        this.free[node] = false;
+        this.prevPhys[node] = NO_NODE;
+        this.nextPhys[node] = NO_NODE;
+        this.prevFree[node] = NO_NODE;
+        this.nextFree[node] = NO_NODE;
+
+        return node;
+    }
+
+    private void growNodes(final int capacity) {
+        final int oldCapacity = null == this.offsets ? 0 : this.offsets.length;
+
+        this.offsets = null == this.offsets ? new long[capacity] : Arrays.copyOf(this.offsets, capacity);
+        this.sizes = null == this.sizes ? new long[capacity] : Arrays.copyOf(this.sizes, capacity);
+        this.free = null == this.free ? new boolean[capacity] : Arrays.copyOf(this.free, capacity);
+        this.prevPhys = null == this.prevPhys ? new int[capacity] : Arrays.copyOf(this.prevPhys, capacity);
+        this.nextPhys = null == this.nextPhys ? new int[capacity] : Arrays.copyOf(this.nextPhys, capacity);
+        this.prevFree = null == this.prevFree ? new int[capacity] : Arrays.copyOf(this.prevFree, capacity);
+        this.nextFree = null == this.nextFree ? new int[capacity] : Arrays.copyOf(this.nextFree, capacity);
+        this.unusedNodes = null == this.unusedNodes ? new int[capacity] : Arrays.copyOf(this.unusedNodes, capacity);
+
+        // hand out low node ids first.
+        for (int node = capacity - 1; node >= oldCapacity; node--) {
+            this.unusedNodes[this.unusedCount++] = node;
+        }
+    }
+
+    private synchronized long map() {
+        if (MemoryUtil.NULL == this.address) {
+            try (var mem = MemoryStack.stackPush()) {
+                final var ppData = mem.callocPointer(1);
+                final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0L, this.size, 0, ppData);
+
+                assert VK10.VK_SUCCESS == err;
+
+                this.address = ppData.get(0);
+            }
+        }
+
+        this.mapCount++;
+
+        return this.address;
+    }
+
+    private synchronized void unmap() {
+        if (0 == --this.mapCount) {
+            this.address = MemoryUtil.NULL;
+            VK10.vkUnmapMemory(this.getDevice(), this.handle);
+        }
+    }
+
+    private final class TLSFMemoryBlock implements MemoryBlock {
+        private final int node;
+        private final long offset;
+        private final long size;
+        private boolean released;
+
+        private TLSFMemoryBlock(final int node, final long offset, final long size) {
+            this.node = node;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public long getHandle() {
+            return TLSFMemoryAllocator.this.handle;
+        }
+
+        @Override
+        public long getOffset() {
+            return this.offset;
+        }
+
+        @Override
+        public long getSize() {
+            return this.size;
+        }
+
+        @Override
+        public long getMemorySize() {
+            return TLSFMemoryAllocator.this.size;
+        }
+
+        @Override
+        public long mapAddress() {
+            return TLSFMemoryAllocator.this.map() + this.getOffset();
+        }
+
+        @Override
+        public void unmap() {
+            TLSFMemoryAllocator.this.unmap();
+        }
+
+        private TLSFMemoryAllocator getAllocator() {
+            return TLSFMemoryAllocator.this;
+        }
+
+        @Override
+        public void free() {
+            TLSFMemoryAllocator.this.release(this);
+        }
+
+        @Override
+        public VkDevice getDevice() {
+            return TLSFMemoryAllocator.this.getDevice();
+        }
+    }
+}
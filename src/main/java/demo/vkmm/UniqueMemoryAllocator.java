@@ -1,21 +1,27 @@
 package demo.vkmm;
 
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.VK10;
 import org.lwjgl.vulkan.VkDevice;
 import org.lwjgl.vulkan.VkMemoryAllocateInfo;
 import org.lwjgl.vulkan.VkMemoryRequirements;
 
 import java.lang.ref.WeakReference;
-import java.nio.ByteBuffer;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
+/**
+ * Allocates each block as its own VkDeviceMemory. Thread-safe: the set of live allocations is guarded by the allocator.
+ */
 public final class UniqueMemoryAllocator implements MemoryAllocator {
     private final WeakReference<VkDevice> device;
     private final int typeIndex;
     private final Set<MemoryBlock> allocations = new HashSet<>();
+    // every allocation made while set stays mapped until it is freed.
+    private volatile boolean persistentlyMapped;
 
     public UniqueMemoryAllocator(final VkDevice device, final int typeIndex) {
         this.device = new WeakReference<>(device);
@@ -23,19 +29,63 @@ public final class UniqueMemoryAllocator implements MemoryAllocator {
     }
 
     @Override
-    public MemoryBlock malloc(MemoryType type, VkMemoryRequirements pMemReqs) {
-        final long alignedSize  = MemoryAllocator.alignUp(pMemReqs.size(), pMemReqs.alignment());
-        final MemoryBlock out = new UniqueMemoryBlock(alignedSize);
+    public MemoryBlock tryMalloc(MemoryType type, VkMemoryRequirements pMemReqs, AllocationStrategy strategy) {
+        try {
+            return this.allocate(pMemReqs);
+        } catch (MemoryAllocationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Allocates a block, reporting the VkResult of a failed vkAllocateMemory instead of returning null.
+     */
+    public MemoryBlock allocate(final VkMemoryRequirements pMemReqs) throws MemoryAllocationException {
+        final long alignedSize = MemoryAllocator.alignUp(pMemReqs.size(), pMemReqs.alignment());
+        final long handle;
+
+        try (var mem = MemoryStack.stackPush()) {
+            final var pHandle = mem.callocLong(1);
+            final var pMemoryAI = VkMemoryAllocateInfo.callocStack(mem)
+                    .sType(VK10.VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+                    .memoryTypeIndex(this.typeIndex)
+                    .allocationSize(alignedSize);
+
+            final int err = VK10.vkAllocateMemory(this.getDevice(), pMemoryAI, null, pHandle);
+
+            if (VK10.VK_SUCCESS != err) {
+                throw new MemoryAllocationException(err);
+            }
+
+            handle = pHandle.get();
+        }
+
+        final var out = new UniqueMemoryBlock(handle, alignedSize);
+
+        if (this.persistentlyMapped) {
+            out.mapAddress();
+        }
 
-        this.allocations.add(out);
+        synchronized (this) {
+            this.allocations.add(out);
+        }
 
         return out;
     }
 
     @Override
-    public void free() {
-        this.allocations.forEach(MemoryBlock::free);
-        this.allocations.clear();
+    public synchronized void free() {
+        // blocks remove themselves from the set as they are freed.
+        List.copyOf(this.allocations).forEach(MemoryBlock::free);
+    }
+
+    /**
+     * Each allocation owns its VkDeviceMemory, so this applies to allocations made after the call; each of them is
+     * mapped when it is created.
+     */
+    @Override
+    public void mapPersistently() {
+        this.persistentlyMapped = true;
     }
 
     @Override
@@ -43,36 +93,56 @@ public final class UniqueMemoryAllocator implements MemoryAllocator {
         return Objects.requireNonNull(this.device.get(), "Device was lost!");
     }
 
+    @Override
+    public long getHandle() {
+        return VK10.VK_NULL_HANDLE;
+    }
+
     @Override
     public int getTypeIndex() {
         return this.typeIndex;
     }
 
     @Override
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         return this.allocations.isEmpty();
     }
 
-    private final class UniqueMemoryBlock implements MemoryBlock {
-        private final long handle;
-        private final long size;
+    /**
+     * Every allocation gets its own VkDeviceMemory, so the allocator itself never runs out of space.
+     */
+    @Override
+    public long getFreeSize() {
+        return Long.MAX_VALUE;
+    }
 
-        private UniqueMemoryBlock(final long size) {
-            this.size = size;
+    @Override
+    public long getLargestFreeBlockSize() {
+        return Long.MAX_VALUE;
+    }
 
-            try (var mem = MemoryStack.stackPush()) {
-                final var pHandle = mem.callocLong(1);
-                final var pMemoryAI = VkMemoryAllocateInfo.callocStack(mem)
-                        .sType(VK10.VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
-                        .memoryTypeIndex(UniqueMemoryAllocator.this.typeIndex)
-                        .allocationSize(size);
+    @Override
+    public synchronized int getAllocationCount() {
+        return this.allocations.size();
+    }
 
-                final int err = VK10.vkAllocateMemory(this.getDevice(), pMemoryAI, null, pHandle);
+    /**
+     * There is no shared VkDeviceMemory to report ranges of.
+     */
+    @Override
+    public void forEachFreeRange(final FreeRangeConsumer consumer) {
+    }
 
-                assert VK10.VK_SUCCESS == err;
+    private final class UniqueMemoryBlock implements MemoryBlock {
+        private final long handle;
+        private final long size;
+        private long address;
+        private int mapCount;
+        private boolean released;
 
-                this.handle = pHandle.get();
-            }
+        private UniqueMemoryBlock(final long handle, final long size) {
+            this.handle = handle;
+            this.size = size;
         }
 
         @Override
@@ -91,24 +161,52 @@ public final class UniqueMemoryAllocator implements MemoryAllocator {
         }
 
         @Override
-        public ByteBuffer map() {
-            try (var mem  = MemoryStack.stackPush()) {
-                final var ppData = mem.callocPointer(1);
-                final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0, this.size, 0, ppData);
+        public long getMemorySize() {
+            return this.size;
+        }
+
+        @Override
+        public synchronized long mapAddress() {
+            if (MemoryUtil.NULL == this.address) {
+                try (var mem = MemoryStack.stackPush()) {
+                    final var ppData = mem.callocPointer(1);
+                    final int err = VK10.vkMapMemory(this.getDevice(), this.handle, 0, this.size, 0, ppData);
 
-                assert VK10.VK_SUCCESS == err;
+                    assert VK10.VK_SUCCESS == err;
 
-                return ppData.getByteBuffer(0, (int) this.size);
+                    this.address = ppData.get(0);
+                }
             }
+
+            this.mapCount++;
+
+            return this.address;
         }
 
         @Override
-        public void unmap() {
-            VK10.vkUnmapMemory(this.getDevice(), this.handle);
+        public synchronized void unmap() {
+            if (0 == --this.mapCount) {
+                this.address = MemoryUtil.NULL;
+                VK10.vkUnmapMemory(this.getDevice(), this.handle);
+            }
         }
 
         @Override
         public void free() {
+            synchronized (this) {
+                if (this.released) {
+                    return;
+                }
+
+                this.released = true;
+                this.address = MemoryUtil.NULL;
+            }
+
+            synchronized (UniqueMemoryAllocator.this) {
+                UniqueMemoryAllocator.this.allocations.remove(this);
+            }
+
+            // freeing mapped memory implicitly unmaps it.
             VK10.vkFreeMemory(this.getDevice(), this.handle, null);
         }
 
@@ -0,0 +1,135 @@
+package demo.vkmm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AliasingPlannerTest {
+    private static final long GRANULARITY = 1024L;
+
+    private static AliasingPlanner.Resource buffer(final long size, final long alignment, final int firstUse, final int lastUse) {
+        return new AliasingPlanner.Resource(MemoryType.BUFFER, size, alignment, firstUse, lastUse);
+    }
+
+    private static AliasingPlanner.Resource image(final long size, final long alignment, final int firstUse, final int lastUse) {
+        return new AliasingPlanner.Resource(MemoryType.IMAGE, size, alignment, firstUse, lastUse);
+    }
+
+    @Test
+    public void overlappingLifetimesDoNotShareMemory() {
+        final var layout = AliasingPlanner.plan(List.of(buffer(1000L, 1L, 0, 2), buffer(500L, 1L, 1, 3)), GRANULARITY);
+
+        assertArrayEquals(new long[] {0L, 1000L}, layout.offsets);
+        assertEquals(1500L, layout.size);
+    }
+
+    @Test
+    public void lifetimesThatOnlyTouchShareAPass() {
+        // lastUse is inclusive, so both resources are alive during pass 1.
+        final var layout = AliasingPlanner.plan(List.of(buffer(1000L, 1L, 0, 1), buffer(500L, 1L, 1, 2)), GRANULARITY);
+
+        assertArrayEquals(new long[] {0L, 1000L}, layout.offsets);
+        assertEquals(1500L, layout.size);
+    }
+
+    @Test
+    public void consecutiveLifetimesAlias() {
+        final var layout = AliasingPlanner.plan(List.of(buffer(1000L, 1L, 0, 1), buffer(500L, 1L, 2, 3), buffer(800L, 1L, 4, 4)), GRANULARITY);
+
+        assertArrayEquals(new long[] {0L, 0L, 0L}, layout.offsets);
+        assertEquals(1000L, layout.size);
+    }
+
+    @Test
+    public void alignmentPadsTheOffset() {
+        final var layout = AliasingPlanner.plan(List.of(buffer(100L, 4L, 0, 0), buffer(50L, 256L, 0, 0)), GRANULARITY);
+
+        assertArrayEquals(new long[] {0L, 256L}, layout.offsets);
+        assertEquals(306L, layout.size);
+        assertEquals(256L, layout.alignment);
+    }
+
+    @Test
+    public void smallerResourceFillsAGapBetweenNeighbours() {
+        // the third resource is alive with both others, but fits in the space the short-lived one leaves below it.
+        final var layout = AliasingPlanner.plan(List.of(
+                buffer(1000L, 1L, 0, 0),
+                buffer(600L, 1L, 1, 1),
+                buffer(300L, 1L, 0, 1)), GRANULARITY);
+
+        assertArrayEquals(new long[] {0L, 0L, 1000L}, layout.offsets);
+        assertEquals(1300L, layout.size);
+    }
+
+    @Test
+    public void conflictingNeighboursAreKeptOnSeparatePages() {
+        final var layout = AliasingPlanner.plan(List.of(image(1500L, 1L, 0, 1), buffer(100L, 1L, 1, 2)), GRANULARITY);
+
+        assertArrayEquals(new long[] {0L, 2048L}, layout.offsets);
+        assertEquals(2148L, layout.size);
+        // page boundaries only hold if the allocation itself starts on one.
+        assertEquals(GRANULARITY, layout.alignment);
+    }
+
+    @Test
+    public void conflictingResourcesThatAreNeverAliveTogetherAlias() {
+        final var layout = AliasingPlanner.plan(List.of(image(1500L, 1L, 0, 1), buffer(100L, 1L, 2, 3)), GRANULARITY);
+
+        assertArrayEquals(new long[] {0L, 0L}, layout.offsets);
+        assertEquals(1500L, layout.size);
+    }
+
+    @Test
+    public void randomGraphsHaveValidLayouts() {
+        final var random = new Random(1L);
+
+        for (int graph = 0; graph < 50; graph++) {
+            final var resources = new ArrayList<AliasingPlanner.Resource>();
+
+            for (int i = 0; i < 200; i++) {
+                final int firstUse = random.nextInt(64);
+                final int lastUse = firstUse + random.nextInt(8);
+                final long size = 1L + random.nextInt(1 << 16);
+                final long alignment = 1L << random.nextInt(10);
+
+                resources.add(random.nextBoolean() ? image(size, alignment, firstUse, lastUse) : buffer(size, alignment, firstUse, lastUse));
+            }
+
+            final var layout = AliasingPlanner.plan(resources, GRANULARITY);
+            long end = 0L;
+
+            for (int i = 0; i < resources.size(); i++) {
+                final var a = resources.get(i);
+                final long aStart = layout.offsets[i];
+
+                assertEquals(0L, aStart % a.alignment);
+                end = Math.max(end, aStart + a.size);
+
+                for (int j = i + 1; j < resources.size(); j++) {
+                    final var b = resources.get(j);
+                    final long bStart = layout.offsets[j];
+
+                    if (a.firstUse > b.lastUse || b.firstUse > a.lastUse) {
+                        continue;
+                    }
+
+                    if (a.memType.conflicts(b.memType)) {
+                        // granularity pages of resources alive together never overlap.
+                        assertTrue(aStart + a.size <= bStart / GRANULARITY * GRANULARITY
+                                || bStart + b.size <= aStart / GRANULARITY * GRANULARITY);
+                    } else {
+                        assertTrue(aStart + a.size <= bStart || bStart + b.size <= aStart);
+                    }
+                }
+            }
+
+            assertEquals(end, layout.size);
+        }
+    }
+}
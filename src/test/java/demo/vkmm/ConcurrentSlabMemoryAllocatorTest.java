@@ -0,0 +1,115 @@
+package demo.vkmm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentSlabMemoryAllocatorTest {
+    private static final int THREAD_COUNT = 8;
+
+    private static void runThreads(final Runnable task) throws InterruptedException {
+        final var start = new CountDownLatch(1);
+        final var errors = new ConcurrentLinkedQueue<Throwable>();
+        final var threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final var thread = new Thread(() -> {
+                try {
+                    start.await();
+                    task.run();
+                } catch (Throwable ex) {
+                    errors.add(ex);
+                }
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.peek());
+        }
+    }
+
+    @Test
+    public void noSlabIsClaimedTwice() throws InterruptedException {
+        // fewer slabs than threads hold at once, so claims race for the last free bits.
+        final var slabList = new ConcurrentSlabMemoryAllocator.SlabList(0L, 256L, 100);
+        final var owners = new AtomicIntegerArray(100);
+
+        runThreads(() -> {
+            final var held = new int[16];
+
+            for (int round = 0; round < 20_000; round++) {
+                int heldCount = 0;
+
+                for (; heldCount < held.length; heldCount++) {
+                    final int slab = slabList.claim(0 == round % 2);
+
+                    if (slab < 0) {
+                        break;
+                    }
+
+                    assertTrue("slab " + slab + " was claimed twice", owners.compareAndSet(slab, 0, 1));
+                    held[heldCount] = slab;
+                }
+
+                for (int i = 0; i < heldCount; i++) {
+                    owners.set(held[i], 0);
+                    slabList.release(held[i]);
+                }
+            }
+        });
+
+        assertEquals(100, slabList.getFreeCount());
+        assertEquals(100, slabList.countFreeBits());
+    }
+
+    @Test
+    public void everySlabIsClaimedExactlyOnceUntilExhausted() throws InterruptedException {
+        final var slabList = new ConcurrentSlabMemoryAllocator.SlabList(0L, 256L, 1000);
+        final var claims = new AtomicIntegerArray(1000);
+
+        runThreads(() -> {
+            for (int slab = slabList.claim(true); slab >= 0; slab = slabList.claim(true)) {
+                claims.incrementAndGet(slab);
+            }
+        });
+
+        for (int slab = 0; slab < 1000; slab++) {
+            assertEquals(1, claims.get(slab));
+        }
+
+        assertEquals(0, slabList.getFreeCount());
+        assertEquals(0, slabList.countFreeBits());
+        assertEquals(-1, slabList.claim(false));
+    }
+
+    @Test
+    public void lowestSlabIsClaimedWithoutSpread() {
+        final var slabList = new ConcurrentSlabMemoryAllocator.SlabList(1024L, 256L, 130);
+
+        for (int slab = 0; slab < 130; slab++) {
+            assertEquals(slab, slabList.claim(false));
+        }
+
+        slabList.release(70);
+        slabList.release(3);
+
+        assertEquals(3, slabList.claim(false));
+        assertEquals(70, slabList.claim(false));
+        assertEquals(0, slabList.getFreeCount());
+    }
+}
@@ -0,0 +1,191 @@
+package demo.vkmm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DefragmentationPlannerTest {
+    private static void assertMove(
+            final DefragmentationPlanner.Move move, final int sourceHeap, final int allocation,
+            final int destinationHeap, final long destinationOffset, final long size) {
+
+        assertEquals(sourceHeap, move.sourceHeap);
+        assertEquals(allocation, move.allocation);
+        assertEquals(destinationHeap, move.destinationHeap);
+        assertEquals(destinationOffset, move.destinationOffset);
+        assertEquals(size, move.size);
+    }
+
+    @Test
+    public void evacuatesSparseHeapsIntoTheFullestHeap() {
+        final var pinned = new DefragmentationPlanner.Heap(true)
+                .addFreeRange(100L, 300L)
+                .addFreeRange(700L, 300L);
+        final var twoAllocations = new DefragmentationPlanner.Heap(false)
+                .addFreeRange(0L, 800L)
+                .addAllocation(100L, 64L)
+                .addAllocation(100L, 1L);
+        final var oneAllocation = new DefragmentationPlanner.Heap(false)
+                .addFreeRange(250L, 750L)
+                .addAllocation(250L, 1L);
+
+        final var plan = DefragmentationPlanner.plan(List.of(pinned, twoAllocations, oneAllocation));
+
+        assertEquals(3, plan.moves.size());
+        // the first free range is aligned up to 64; the second allocation takes the smallest range left over.
+        assertMove(plan.moves.get(0), 1, 0, 0, 128L, 100L);
+        assertMove(plan.moves.get(1), 1, 1, 0, 228L, 100L);
+        assertMove(plan.moves.get(2), 2, 0, 0, 700L, 250L);
+        assertArrayEquals(new int[] {1, 2}, plan.evacuatedHeaps);
+        assertEquals(450L, plan.getMovedSize());
+    }
+
+    @Test
+    public void pinnedHeapIsNeverEvacuated() {
+        final var pinned = new DefragmentationPlanner.Heap(true)
+                .addFreeRange(0L, 1000L);
+        final var full = new DefragmentationPlanner.Heap(false)
+                .addAllocation(1000L, 1L);
+
+        final var plan = DefragmentationPlanner.plan(List.of(pinned, full));
+
+        assertEquals(1, plan.moves.size());
+        assertMove(plan.moves.get(0), 1, 0, 0, 0L, 1000L);
+        assertArrayEquals(new int[] {1}, plan.evacuatedHeaps);
+    }
+
+    @Test
+    public void heapThatCannotBeFullyPlacedIsKept() {
+        final var destination = new DefragmentationPlanner.Heap(true)
+                .addFreeRange(0L, 150L);
+        final var source = new DefragmentationPlanner.Heap(false)
+                .addFreeRange(200L, 800L)
+                .addAllocation(100L, 1L)
+                .addAllocation(100L, 1L);
+
+        final var plan = DefragmentationPlanner.plan(List.of(destination, source));
+
+        assertTrue(plan.moves.isEmpty());
+        assertEquals(0, plan.evacuatedHeaps.length);
+    }
+
+    @Test
+    public void alignmentIsIncludedWhenPlacing() {
+        // the range is large enough for the allocation, but not once its start is aligned up to 256.
+        final var destination = new DefragmentationPlanner.Heap(true)
+                .addFreeRange(16L, 300L);
+        final var source = new DefragmentationPlanner.Heap(false)
+                .addAllocation(100L, 256L);
+
+        final var plan = DefragmentationPlanner.plan(List.of(destination, source));
+
+        assertTrue(plan.moves.isEmpty());
+        assertEquals(0, plan.evacuatedHeaps.length);
+    }
+
+    @Test
+    public void heapThatReceivedAllocationsIsNotEvacuated() {
+        final var first = new DefragmentationPlanner.Heap(false)
+                .addFreeRange(100L, 900L)
+                .addAllocation(100L, 1L);
+        final var second = new DefragmentationPlanner.Heap(false)
+                .addFreeRange(0L, 800L)
+                .addAllocation(200L, 1L);
+
+        final var plan = DefragmentationPlanner.plan(List.of(first, second));
+
+        // the heap with fewer live bytes goes first; the other heap then holds both allocations and stays.
+        assertEquals(1, plan.moves.size());
+        assertMove(plan.moves.get(0), 0, 0, 1, 0L, 100L);
+        assertArrayEquals(new int[] {0}, plan.evacuatedHeaps);
+    }
+
+    @Test
+    public void evacuatedHeapIsNotADestination() {
+        final var pinned = new DefragmentationPlanner.Heap(true)
+                .addFreeRange(0L, 100L);
+        final var small = new DefragmentationPlanner.Heap(false)
+                .addFreeRange(100L, 900L)
+                .addAllocation(100L, 1L);
+        final var large = new DefragmentationPlanner.Heap(false)
+                .addFreeRange(300L, 700L)
+                .addAllocation(300L, 1L);
+
+        final var plan = DefragmentationPlanner.plan(List.of(pinned, small, large));
+
+        // small fills the pinned heap, leaving large with nowhere to go but the heap that was just emptied.
+        assertEquals(1, plan.moves.size());
+        assertMove(plan.moves.get(0), 1, 0, 0, 0L, 100L);
+        assertArrayEquals(new int[] {1}, plan.evacuatedHeaps);
+    }
+
+    private static DefragmentationPlanner.Heap layoutOf(final MemoryAllocator heap, final List<MemoryBlock> movable, final long alignment) {
+        final var layout = new DefragmentationPlanner.Heap(heap.getAllocationCount() != movable.size());
+
+        heap.forEachFreeRange(layout::addFreeRange);
+        movable.forEach(block -> layout.addAllocation(block.getSize(), heap.getPlacementAlignment(block.getSize(), alignment)));
+
+        return layout;
+    }
+
+    @Test
+    public void buddyHeapIsPlannedWhereTheAllocatorCanPlaceBlocks() {
+        final long minSize = 4096L;
+        final long heapSize = 8L * minSize;
+        final var heaps = List.of(
+                new BuddyBlockMemoryAllocator(null, 0, minSize, heapSize, 1L),
+                new BuddyBlockMemoryAllocator(null, 0, minSize, heapSize, 2L),
+                new BuddyBlockMemoryAllocator(null, 0, minSize, heapSize, 3L));
+
+        // the first heap is pinned and only has [16K, 32K) free; the others are evacuated into it.
+        heaps.get(0).tryMalloc(MemoryType.BUFFER, 4L * minSize, 256L, AllocationStrategy.MIN_OFFSET);
+
+        final var blocks = List.<List<MemoryBlock>> of(
+                List.of(),
+                List.of(heaps.get(1).tryMalloc(MemoryType.BUFFER, minSize, 256L, AllocationStrategy.MIN_OFFSET)),
+                List.of(
+                        heaps.get(2).tryMalloc(MemoryType.BUFFER, 2L * minSize, 256L, AllocationStrategy.MIN_OFFSET),
+                        heaps.get(2).tryMalloc(MemoryType.BUFFER, minSize, 256L, AllocationStrategy.MIN_OFFSET)));
+
+        final var layouts = new ArrayList<DefragmentationPlanner.Heap>();
+
+        for (int i = 0; i < heaps.size(); i++) {
+            layouts.add(layoutOf(heaps.get(i), blocks.get(i), 256L));
+        }
+
+        final var plan = DefragmentationPlanner.plan(layouts);
+
+        assertArrayEquals(new int[] {1, 2}, plan.evacuatedHeaps);
+
+        for (var move : plan.moves) {
+            // after the 4K block takes [16K, 20K), an 8K block only aligned to 256 would be planned at 20K.
+            assertEquals(0L, move.destinationOffset % move.size);
+
+            final var block = blocks.get(move.sourceHeap).get(move.allocation);
+
+            assertNotNull(heaps.get(move.destinationHeap).tryMalloc(MemoryType.BUFFER, block.getSize(), 256L, AllocationStrategy.MIN_MEMORY));
+            block.free();
+        }
+
+        assertTrue(heaps.get(1).isEmpty());
+        assertTrue(heaps.get(2).isEmpty());
+        assertEquals(0L, heaps.get(0).getFreeSize());
+    }
+
+    @Test
+    public void emptyLayoutHasNoMoves() {
+        final var plan = DefragmentationPlanner.plan(List.of(
+                new DefragmentationPlanner.Heap(false).addFreeRange(0L, 1000L),
+                new DefragmentationPlanner.Heap(true)));
+
+        assertTrue(plan.moves.isEmpty());
+        assertEquals(0, plan.evacuatedHeaps.length);
+        assertEquals(0L, plan.getMovedSize());
+    }
+}
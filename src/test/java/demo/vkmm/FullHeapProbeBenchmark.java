@@ -0,0 +1,120 @@
+package demo.vkmm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the cost of an allocation that has to probe past full heaps, as MemoryManager does when every heap but the
+ * last is full. The old probe called malloc on each heap and caught the OutOfMemoryError it threw; the new one checks
+ * tryMalloc for null. Buddy heaps are built over placeholder handles, so the benchmark runs without a VkDevice.
+ * <p>
+ * Run the main method from the test classpath; the reported time is the best of 5 runs, and covers one allocation and
+ * one free.
+ */
+public final class FullHeapProbeBenchmark {
+    private static final long MIN_SIZE = 4096L;
+    private static final long HEAP_SIZE = 64L * 1024L * 1024L;
+    private static final long REQUEST_SIZE = 64L * 1024L;
+    private static final int OPERATIONS = 200_000;
+    private static final int RUNS = 5;
+
+    private interface Probe {
+        MemoryBlock allocate(List<BuddyBlockMemoryAllocator> heaps);
+    }
+
+    private FullHeapProbeBenchmark() {}
+
+    /**
+     * Builds {@code fullCount} full heaps followed by one heap with a single free block of REQUEST_SIZE.
+     */
+    private static List<BuddyBlockMemoryAllocator> newHeaps(final int fullCount) {
+        final var heaps = new ArrayList<BuddyBlockMemoryAllocator>();
+        MemoryBlock lastBlock = null;
+
+        for (int i = 0; i <= fullCount; i++) {
+            final var heap = new BuddyBlockMemoryAllocator(null, 0, MIN_SIZE, HEAP_SIZE, i + 1L);
+
+            for (var block = heap.tryMalloc(MemoryType.BUFFER, REQUEST_SIZE, 256L, AllocationStrategy.MIN_TIME);
+                    null != block;
+                    block = heap.tryMalloc(MemoryType.BUFFER, REQUEST_SIZE, 256L, AllocationStrategy.MIN_TIME)) {
+
+                lastBlock = block;
+            }
+
+            heaps.add(heap);
+        }
+
+        // the last heap is full too; give back one request's worth of room.
+        lastBlock.free();
+
+        return heaps;
+    }
+
+    private static MemoryBlock allocateCatching(final List<BuddyBlockMemoryAllocator> heaps) {
+        for (var heap : heaps) {
+            try {
+                final var out = heap.tryMalloc(MemoryType.BUFFER, REQUEST_SIZE, 256L, AllocationStrategy.MIN_TIME);
+
+                // what the default malloc does on failure.
+                if (null == out) {
+                    throw new OutOfMemoryError();
+                }
+
+                return out;
+            } catch (OutOfMemoryError ex) {
+                // try the next heap.
+            }
+        }
+
+        return null;
+    }
+
+    private static MemoryBlock allocateTrying(final List<BuddyBlockMemoryAllocator> heaps) {
+        for (var heap : heaps) {
+            final var out = heap.tryMalloc(MemoryType.BUFFER, REQUEST_SIZE, 256L, AllocationStrategy.MIN_TIME);
+
+            if (null != out) {
+                return out;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the nanoseconds per allocation and free.
+     */
+    private static double run(final Probe probe, final List<BuddyBlockMemoryAllocator> heaps) {
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < OPERATIONS; i++) {
+            probe.allocate(heaps).free();
+        }
+
+        return (System.nanoTime() - start) / (double) OPERATIONS;
+    }
+
+    public static void main(final String[] args) {
+        final Probe catching = FullHeapProbeBenchmark::allocateCatching;
+        final Probe trying = FullHeapProbeBenchmark::allocateTrying;
+
+        System.out.println("full heaps  malloc + catch (ns/op)  tryMalloc (ns/op)");
+
+        for (int fullCount : new int[] {0, 1, 4, 16}) {
+            final var heaps = newHeaps(fullCount);
+            double caught = Double.MAX_VALUE;
+            double tried = Double.MAX_VALUE;
+
+            // one untimed run of each warms up its path.
+            run(catching, heaps);
+            run(trying, heaps);
+
+            for (int i = 0; i < RUNS; i++) {
+                caught = Math.min(caught, run(catching, heaps));
+                tried = Math.min(tried, run(trying, heaps));
+            }
+
+            System.out.printf("%10d  %22.1f  %17.1f%n", fullCount, caught, tried);
+        }
+    }
+}
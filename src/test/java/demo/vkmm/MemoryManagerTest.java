@@ -0,0 +1,82 @@
+package demo.vkmm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryManagerTest {
+    private static final long NOW = 1_000_000_000L;
+    private static final long PERIOD = 10_000_000L;
+
+    private static MemoryManager.EmptyHeap emptyHeap(final int typeIndex, final long size, final long emptySince) {
+        return new MemoryManager.EmptyHeap(null, null, typeIndex, size, emptySince);
+    }
+
+    @Test
+    public void largestHeapIsRetainedAmongHeapsEmptiedTogether() {
+        final var slabPage = emptyHeap(0, 512L * 1024L, NOW);
+        final var standardHeap = emptyHeap(0, 256L * 1024L * 1024L, NOW);
+        final var retained = new ArrayList<MemoryManager.EmptyHeap>();
+        final var garbage = new ArrayList<MemoryManager.EmptyHeap>();
+
+        MemoryManager.selectRetainedHeaps(new ArrayList<>(List.of(slabPage, standardHeap)), NOW, 1, 1, Long.MAX_VALUE, PERIOD, retained, garbage);
+
+        assertEquals(List.of(standardHeap), retained);
+        assertEquals(List.of(slabPage), garbage);
+    }
+
+    @Test
+    public void newestHeapIsRetainedFirst() {
+        final var older = emptyHeap(0, 256L * 1024L * 1024L, NOW - 2L);
+        final var newer = emptyHeap(0, 512L * 1024L, NOW - 1L);
+        final var retained = new ArrayList<MemoryManager.EmptyHeap>();
+        final var garbage = new ArrayList<MemoryManager.EmptyHeap>();
+
+        MemoryManager.selectRetainedHeaps(new ArrayList<>(List.of(older, newer)), NOW, 1, 1, Long.MAX_VALUE, PERIOD, retained, garbage);
+
+        assertEquals(List.of(newer), retained);
+        assertEquals(List.of(older), garbage);
+    }
+
+    @Test
+    public void heapOverTheSizeBudgetIsReleased() {
+        final var large = emptyHeap(0, 256L, NOW);
+        final var small = emptyHeap(0, 64L, NOW);
+        final var retained = new ArrayList<MemoryManager.EmptyHeap>();
+        final var garbage = new ArrayList<MemoryManager.EmptyHeap>();
+
+        MemoryManager.selectRetainedHeaps(new ArrayList<>(List.of(small, large)), NOW, 1, 2, 128L, PERIOD, retained, garbage);
+
+        assertEquals(List.of(small), retained);
+        assertEquals(List.of(large), garbage);
+    }
+
+    @Test
+    public void expiredHeapIsReleased() {
+        final var expired = emptyHeap(0, 64L, NOW - PERIOD);
+        final var retained = new ArrayList<MemoryManager.EmptyHeap>();
+        final var garbage = new ArrayList<MemoryManager.EmptyHeap>();
+
+        MemoryManager.selectRetainedHeaps(new ArrayList<>(List.of(expired)), NOW, 1, 1, Long.MAX_VALUE, PERIOD, retained, garbage);
+
+        assertEquals(0, retained.size());
+        assertEquals(List.of(expired), garbage);
+    }
+
+    @Test
+    public void budgetsAreKeptPerMemoryType() {
+        final var first = emptyHeap(0, 64L, NOW);
+        final var second = emptyHeap(1, 64L, NOW);
+        final var third = emptyHeap(1, 32L, NOW);
+        final var retained = new ArrayList<MemoryManager.EmptyHeap>();
+        final var garbage = new ArrayList<MemoryManager.EmptyHeap>();
+
+        MemoryManager.selectRetainedHeaps(new ArrayList<>(List.of(first, second, third)), NOW, 2, 1, Long.MAX_VALUE, PERIOD, retained, garbage);
+
+        assertEquals(List.of(first, second), retained);
+        assertEquals(List.of(third), garbage);
+    }
+}
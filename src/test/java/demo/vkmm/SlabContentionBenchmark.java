@@ -0,0 +1,134 @@
+package demo.vkmm;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares claiming and releasing slabs in ConcurrentSlabMemoryAllocator's lock-free bitmap with the bitmap of
+ * SlabMemoryAllocator under the allocator's lock, from 1 to 32 threads sharing one size class. Neither bitmap touches
+ * the device, so the benchmark runs without one.
+ * <p>
+ * Each thread keeps 8 slabs and repeatedly releases its oldest slab and claims a new one. Run the main method from the
+ * test classpath; the reported time is the best of 5 runs per thread count.
+ */
+public final class SlabContentionBenchmark {
+    private static final int SLAB_COUNT = 4096;
+    private static final int HELD_SLABS = 8;
+    private static final int OPERATIONS = 1_000_000;
+    private static final int RUNS = 5;
+
+    private interface Bitmap {
+        int claim();
+
+        void release(int slab);
+    }
+
+    private SlabContentionBenchmark() {}
+
+    private static Bitmap newLockedBitmap() {
+        final var slabList = new SlabMemoryAllocator.SlabList(0L, 256L, SLAB_COUNT);
+
+        return new Bitmap() {
+            @Override
+            public int claim() {
+                synchronized (slabList) {
+                    final int slab = slabList.firstFree();
+
+                    slabList.claim(slab);
+                    return slab;
+                }
+            }
+
+            @Override
+            public void release(final int slab) {
+                synchronized (slabList) {
+                    slabList.release(slab);
+                }
+            }
+        };
+    }
+
+    private static Bitmap newConcurrentBitmap() {
+        final var slabList = new ConcurrentSlabMemoryAllocator.SlabList(0L, 256L, SLAB_COUNT);
+
+        return new Bitmap() {
+            @Override
+            public int claim() {
+                return slabList.claim(true);
+            }
+
+            @Override
+            public void release(final int slab) {
+                slabList.release(slab);
+            }
+        };
+    }
+
+    /**
+     * @return the nanoseconds per claim and release pair.
+     */
+    private static double run(final Bitmap bitmap, final int threadCount) throws InterruptedException {
+        final var start = new CountDownLatch(1);
+        final var threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < threadCount; i++) {
+            final var thread = new Thread(() -> {
+                final var held = new int[HELD_SLABS];
+
+                for (int j = 0; j < HELD_SLABS; j++) {
+                    held[j] = bitmap.claim();
+                }
+
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    throw new IllegalStateException(ex);
+                }
+
+                for (int j = 0; j < OPERATIONS; j++) {
+                    bitmap.release(held[j % HELD_SLABS]);
+                    held[j % HELD_SLABS] = bitmap.claim();
+                }
+
+                for (int slab : held) {
+                    bitmap.release(slab);
+                }
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        final long startTime = System.nanoTime();
+
+        start.countDown();
+
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        return (System.nanoTime() - startTime) / (double) (threadCount * (long) OPERATIONS);
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        // warm up both paths before timing either.
+        for (int i = 0; i < 3; i++) {
+            run(newLockedBitmap(), 2);
+            run(newConcurrentBitmap(), 2);
+        }
+
+        System.out.println("threads  synchronized (ns/op)  lock-free (ns/op)");
+
+        for (int threadCount = 1; threadCount <= 32; threadCount *= 2) {
+            double locked = Double.MAX_VALUE;
+            double concurrent = Double.MAX_VALUE;
+
+            for (int i = 0; i < RUNS; i++) {
+                locked = Math.min(locked, run(newLockedBitmap(), threadCount));
+                concurrent = Math.min(concurrent, run(newConcurrentBitmap(), threadCount));
+            }
+
+            System.out.printf("%7d  %20.1f  %17.1f%n", threadCount, locked, concurrent);
+        }
+    }
+}